@@ -17,57 +17,179 @@
 package org.lucidj.admind;
 
 import org.lucidj.admind.builtin.EchoTask;
+import org.lucidj.admind.builtin.HeapDumpTask;
+import org.lucidj.admind.builtin.HistogramTask;
+import org.lucidj.admind.builtin.JfrTask;
+import org.lucidj.admind.builtin.PipelineTask;
+import org.lucidj.admind.builtin.ProfileTask;
+import org.lucidj.admind.builtin.ReadyTask;
+import org.lucidj.admind.builtin.ScheduleTask;
 import org.lucidj.admind.builtin.ShutdownTask;
+import org.lucidj.admind.builtin.StartupTask;
+import org.lucidj.admind.builtin.StateTask;
+import org.lucidj.admind.builtin.StatsTask;
 import org.lucidj.admind.builtin.StartlevelTask;
 import org.lucidj.admind.shared.AdmindUtil;
+import org.lucidj.admind.shared.TransactionFile;
 import org.lucidj.api.admind.Task;
+import org.lucidj.api.admind.TaskHandler;
 import org.lucidj.api.admind.TaskProvider;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceReference;
 import org.osgi.util.tracker.ServiceTracker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 public class Admind implements TaskProvider
 {
     private final static Logger log = LoggerFactory.getLogger (Admind.class);
 
-    private String admind_dir;
+    private final static String TRANSACTION_TTL_PROPERTY = "admind.transaction.ttl.ms";
+    private final static long DEFAULT_TRANSACTION_TTL_MS = 10 * 60 * 1000;
+    private final static String PROVIDER_SELECTION_PROPERTY = "admind.provider.selection";
+    private final static String WARMUP_ITERATIONS_PROPERTY = "admind.warmup.iterations";
+    private final static long DEFAULT_WARMUP_ITERATIONS = 10;
+    private final static String PIPE_SIZE_PROPERTY = "admind.pipeline.pipe.size";
+    private final static long DEFAULT_PIPE_SIZE = 64 * 1024;
+    private final static long LOAD_PUBLISH_MS = 1000;
+    private final static String QUEUE_ENABLED_PROPERTY = "admind.queue.enabled";
+    private final static String QUEUE_POLL_PROPERTY = "admind.queue.poll.ms";
+    private final static long DEFAULT_QUEUE_POLL_MS = 100;
+    private final static String QUEUE_MAX_ACTIVE_PROPERTY = "admind.queue.max.active";
+    private final static String TASK_DEADLINE_PROPERTY = "admind.task.deadline.ms";
+    private final static String PROBE_INTERVAL_PROPERTY = "admind.probe.interval.ms";
+    private final static long DEFAULT_PROBE_INTERVAL_MS = 10000;
+    private final static String PROBE_TIMEOUT_PROPERTY = "admind.probe.timeout.ms";
+    private final static long DEFAULT_PROBE_TIMEOUT_MS = 5000;
+    private final static String PROBE_PAYLOAD = "admind-probe";
+    private final static String RECORD_FILE_PROPERTY = "admind.record.file";
+    private final static String RECORD_MAX_BYTES_PROPERTY = "admind.record.max.bytes";
+    private final static long DEFAULT_RECORD_MAX_BYTES = 64 * 1024 * 1024;
+    private final static String RECORD_PAYLOAD_PROPERTY = "admind.record.payload";
+    private final static String RECORD_PAYLOAD_MAX_PROPERTY = "admind.record.payload.max";
+    private final static long DEFAULT_RECORD_PAYLOAD_MAX = 64 * 1024;
+    private final static String STORAGE_HIGH_WATER_PROPERTY = "admind.storage.high.water";
+    private final static long DEFAULT_STORAGE_HIGH_WATER = 90;
+    private final static String QUOTA_INPUT_PROPERTY = "admind.quota.input.bytes";
+    private final static String QUOTA_OUTPUT_PROPERTY = "admind.quota.output.bytes";
+    private final static String STATE_CHANGES_PROPERTY = "admind.state.changes";
+    private final static long DEFAULT_STATE_CHANGES = 4096;
+    private final static String SUBSCRIPTION_RING_PROPERTY = "admind.subscription.ring.bytes";
+    private final static long DEFAULT_SUBSCRIPTION_RING = 1024 * 1024;
+    private final static String SUBSCRIPTION_HEARTBEAT_PROPERTY = "admind.subscription.heartbeat.ms";
+    private final static long DEFAULT_SUBSCRIPTION_HEARTBEAT_MS = 30000;
+    private final static String HANDLER_THREADS_PROPERTY = "admind.handler.threads";
+    private final static long DEFAULT_HANDLER_THREADS = 16;
+    private final static String HANDLER_QUEUE_PROPERTY = "admind.handler.queue";
+    private final static long DEFAULT_HANDLER_QUEUE = 256;
+
+    private volatile String admind_dir;
     private boolean cleanup_admind_dir;
 
     private ThreadGroup admind_group;
     private Thread admind_main_thread;
     private WatchService watch_service;
+    private TimingWheel timing_wheel;
+    private HandlerPool handler_pool;
+    private TransactionReaper transaction_reaper;
+    private final LoadMonitor load_monitor = new LoadMonitor ();
+    private final TaskStats task_stats = new TaskStats ();
+    private Watchdog watchdog;
+    private Thread probe_thread;
+    private TrafficRecorder traffic_recorder;
+    private StorageGuard storage_guard;
+    private Subscriptions subscriptions;
+    private Scheduler scheduler;
+    private final StartupTimer startup_timer;
+    private FrameworkState framework_state;
+    private WorkQueue work_queue;
+    private Thread work_queue_thread;
 
     private BundleContext context;
     private ServiceTracker<TaskProvider, TaskProvider> service_tracker;
-    private Map<String, TaskProvider> available_tasks = new ConcurrentHashMap<> ();
+    private ServiceTracker<TaskHandler, TaskHandler> handler_tracker;
+    private TaskProviderIndex available_tasks = new TaskProviderIndex ();
+    private int selection_policy;
+
+    // Only used by the watcher thread, parsed once per request and reused
+    private final TaskIdentifier task_id = new TaskIdentifier ();
+
+    // Also watcher thread only, what we already took and need not look at again
+    private final Set<String> claimed_files = new HashSet<> ();
 
     public Admind (BundleContext context)
     {
         this.context = context;
+
+        // Before anything else, so we see as many bundles starting as possible
+        startup_timer = new StartupTimer (context);
+        startup_timer.open ();
+        selection_policy = TaskProviderIndex.parsePolicy (context.getProperty (PROVIDER_SELECTION_PROPERTY));
         init_builtin_tasks ();
-        service_tracker = new TaskProviderTracker (context);
+        service_tracker = new TaskServiceTracker<> (context, TaskProvider.class);
+        handler_tracker = new TaskServiceTracker<> (context, TaskHandler.class);
+    }
+
+    private long get_long_property (String key, long default_value)
+    {
+        String value = context.getProperty (key);
+
+        try
+        {
+            return ((value == null)? default_value: Long.parseLong (value.trim ()));
+        }
+        catch (NumberFormatException e)
+        {
+            log.warn ("Invalid value for {}: {}", key, value);
+            return (default_value);
+        }
+    }
+
+    private int get_size_property (String key, long default_value)
+    {
+        long value = get_long_property (key, default_value);
+
+        // Sizes end up allocating arrays, only sane values get that far
+        if (value <= 0 || value > Integer.MAX_VALUE - 8)
+        {
+            log.warn ("Invalid value for {}: {}", key, value);
+            return ((int)default_value);
+        }
+        return ((int)value);
     }
 
     private void init_builtin_tasks ()
     {
-        available_tasks.put (EchoTask.NAME, this);
-        available_tasks.put (StartlevelTask.NAME, this);
-        available_tasks.put (ShutdownTask.NAME, this);
+        // Built-ins have the lowest possible ranking, so they may be
+        // overridden and will come back when the override goes away
+        available_tasks.add (EchoTask.NAME, this, Integer.MIN_VALUE, -1);
+        available_tasks.add (StartlevelTask.NAME, this, Integer.MIN_VALUE, -1);
+        available_tasks.add (ShutdownTask.NAME, this, Integer.MIN_VALUE, -1);
+        available_tasks.add (ReadyTask.NAME, this, Integer.MIN_VALUE, -1);
+        available_tasks.add (PipelineTask.NAME, this, Integer.MIN_VALUE, -1);
+        available_tasks.add (JfrTask.NAME, this, Integer.MIN_VALUE, -1);
+        available_tasks.add (ProfileTask.NAME, this, Integer.MIN_VALUE, -1);
+        available_tasks.add (HistogramTask.NAME, this, Integer.MIN_VALUE, -1);
+        available_tasks.add (HeapDumpTask.NAME, this, Integer.MIN_VALUE, -1);
+        available_tasks.add (StatsTask.NAME, this, Integer.MIN_VALUE, -1);
+        available_tasks.add (StartupTask.NAME, this, Integer.MIN_VALUE, -1);
+        available_tasks.add (StateTask.NAME, this, Integer.MIN_VALUE, -1);
+        available_tasks.add (ScheduleTask.NAME, this, Integer.MIN_VALUE, -1);
     }
 
     @Override // TaskProvider
     public Task createTask (InputStream in, OutputStream out, OutputStream err, String locator, String... options)
     {
-        log.info ("Built-in task: locator={} options={}", locator, (Object)options);
+        log.debug ("Built-in task: locator={} options={}", locator, (Object)options);
 
         switch (locator)
         {
@@ -79,6 +201,47 @@ public class Admind implements TaskProvider
             {
                 return (new StartlevelTask (context, in, out, err, locator, options));
             }
+            case PipelineTask.NAME:
+            {
+                return (new PipelineTask (available_tasks, selection_policy,
+                    get_size_property (PIPE_SIZE_PROPERTY, DEFAULT_PIPE_SIZE), in, out, err, locator, options));
+            }
+            case JfrTask.NAME:
+            {
+                return (new JfrTask (in, out, err, locator, options));
+            }
+            case ProfileTask.NAME:
+            {
+                return (new ProfileTask (in, out, err, locator, options));
+            }
+            case HistogramTask.NAME:
+            {
+                return (new HistogramTask (in, out, err, locator, options));
+            }
+            case HeapDumpTask.NAME:
+            {
+                return (new HeapDumpTask (in, out, err, locator, options));
+            }
+            case StatsTask.NAME:
+            {
+                return (new StatsTask (load_monitor, task_stats, watchdog, in, out, err, locator, options));
+            }
+            case StartupTask.NAME:
+            {
+                return (new StartupTask (startup_timer, in, out, err, locator, options));
+            }
+            case StateTask.NAME:
+            {
+                return (new StateTask (framework_state, in, out, err, locator, options));
+            }
+            case ScheduleTask.NAME:
+            {
+                return (new ScheduleTask (scheduler, in, out, err, locator, options));
+            }
+            case ReadyTask.NAME:
+            {
+                return (new ReadyTask (available_tasks, in, out, err, locator, options));
+            }
             case EchoTask.NAME:
             default:
             {
@@ -123,44 +286,75 @@ public class Admind implements TaskProvider
         }
     }
 
+    private TaskProviderIndex.Entry find_provider (String name)
+    {
+        return ((name == null)? null: available_tasks.select (name, selection_policy));
+    }
+
+    private static String rejection_message (String name)
+    {
+        return ((name == null)? "Invalid task identifier": "Task '" + name + "' not found");
+    }
+
+    private String shedding_message (long request_size)
+    {
+        // Known task, but no room for it
+        if (storage_guard.isShedding (admind_dir))
+        {
+            return (storage_guard.getSheddingMessage ());
+        }
+        return (storage_guard.exceedsInputQuota (request_size)?
+            storage_guard.getInputQuotaMessage (request_size): null);
+    }
+
     private void assign_task (File req_file)
     {
-        log.debug ("assign_task: {} size={}", req_file, req_file.length ());
+        log.debug ("assign_task: {}", req_file);
 
-        String identifier = req_file.getName ().substring (0, req_file.getName ().lastIndexOf ('.'));
-        String name = TaskThread.getTaskName (identifier);
-        String err_message = null;
+        String file_name = req_file.getName ();
 
-        if (name == null)
+        if (!claimed_files.add (file_name))
         {
-            err_message = "Invalid task identifier";
+            // Already dispatched, the request was written again or it's a subscription heartbeat
+            return;
         }
-        else
+
+        String name = task_id.parse (file_name, file_name.length () - AdmindUtil.REQUEST_SUFFIX.length ())?
+            task_id.getName (): null;
+        TaskProviderIndex.Entry provider = find_provider (name);
+        String err_message = (provider == null)? rejection_message (name): shedding_message (req_file.length ());
+
+        // Requests claimed from the work queue already hold a queued slot
+        boolean claimed = (work_queue != null && work_queue.takeClaim (file_name));
+        TaskThread task_thread = null;
+
+        if (err_message == null)
         {
-            if (available_tasks.containsKey (name))
+            if (traffic_recorder != null)
             {
-                TaskProvider provider = available_tasks.get (name);
-                Thread task_thread = TaskThread.newInstance (admind_group, provider, req_file);
-                log.debug ("Task {} => {}", identifier, task_thread);
-
-                if (task_thread != null)
-                {
-                    task_thread.start ();
-                }
+                traffic_recorder.recordRequest (task_id, req_file);
             }
-            else
+
+            task_thread = TaskThread.newInstance (admind_group, provider, task_id, req_file,
+                storage_guard, subscriptions);
+            log.debug ("Task {} => {}", task_id, task_thread);
+
+            if (task_thread != null)
             {
-                err_message = "Task '" + name + "' not found";
+                task_thread.setLoadMonitor (load_monitor, claimed);
+                task_thread.setTaskStats (task_stats);
+                task_thread.setWatchdog (watchdog);
+                task_thread.setHandlerPool (handler_pool);
+                task_thread.start ();
             }
         }
-
-        if (err_message != null)
+        else
         {
             String request = req_file.getAbsolutePath ();
             File tmp_file = AdmindUtil.tempFile (request);
             File err_file = AdmindUtil.statusFile (request);
 
-            try (PrintStream pw = new PrintStream (tmp_file))
+            try (PrintStream pw = new PrintStream (AdmindUtil.newOutputStream (tmp_file)))
             {
                 pw.println (err_message + ": " + req_file.getName ());
             }
@@ -169,7 +363,265 @@ public class Admind implements TaskProvider
                 log.warn ("Exception creating err file {}: {}", tmp_file.getName (), e.toString ());
             }
             tmp_file.renameTo (err_file);
-            AdmindUtil.createAndFixPermissions (err_file);
+        }
+
+        if (claimed && task_thread == null)
+        {
+            // Rejected or failed, the claim never turns into a running task
+            load_monitor.taskUnqueued ();
+        }
+    }
+
+    private void assign_transaction (File txn_file)
+    {
+        log.debug ("assign_transaction: {}", txn_file);
+
+        TransactionFile transaction;
+
+        if (claimed_files.contains (txn_file.getName ()))
+        {
+            // Every response flush is a modify event, no need to look at it again
+            return;
+        }
+
+        try
+        {
+            transaction = TransactionFile.open (txn_file);
+
+            // We see several events for every transaction, only the one
+            // finding it complete and still pending takes it
+            if (!transaction.claim ())
+            {
+                transaction.close ();
+                return;
+            }
+            claimed_files.add (txn_file.getName ());
+        }
+        catch (IOException e)
+        {
+            log.debug ("Exception claiming transaction {}: {}", txn_file.getName (), e.toString ());
+            return;
+        }
+
+        String file_name = txn_file.getName ();
+        String name = task_id.parse (file_name, file_name.length () - AdmindUtil.TRANSACTION_SUFFIX.length ())?
+            task_id.getName (): null;
+        TaskProviderIndex.Entry provider = find_provider (name);
+        String err_message = (provider == null)?
+            rejection_message (name): shedding_message (transaction.getRequestLength ());
+
+        if (err_message == null && Subscriptions.isSubscription (task_id.getOptions ()))
+        {
+            // The records need a ring file of their own
+            err_message = "Subscriptions are not available on transactions";
+        }
+
+        if (err_message == null)
+        {
+            if (traffic_recorder != null)
+            {
+                traffic_recorder.recordTransaction (task_id, transaction, txn_file);
+            }
+
+            TaskThread task_thread = TaskThread.newInstance (admind_group, provider, task_id,
+                txn_file, transaction, storage_guard);
+            log.debug ("Task {} => {}", task_id, task_thread);
+
+            if (task_thread != null)
+            {
+                task_thread.setLoadMonitor (load_monitor);
+                task_thread.setTaskStats (task_stats);
+                task_thread.setWatchdog (watchdog);
+                task_thread.setHandlerPool (handler_pool);
+                task_thread.start ();
+            }
+        }
+        else
+        {
+            byte[] error = (err_message + ": " + txn_file.getName () + "\n").getBytes (StandardCharsets.UTF_8);
+            TaskThread.completeTransaction (transaction, TransactionFile.STATUS_REJECTED, error);
+        }
+    }
+
+    private void launch_scheduled (TaskIdentifier scheduled_id, byte[] request,
+                                   OutputStream out, OutputStream err, TaskThread.Completion completion)
+    {
+        // Same path as a request, minus the files
+        TaskProviderIndex.Entry provider = find_provider (scheduled_id.getName ());
+        String err_message = (provider == null)?
+            rejection_message (scheduled_id.getName ()): shedding_message (request.length);
+        TaskThread task_thread = null;
+
+        if (err_message == null)
+        {
+            task_thread = TaskThread.newInstance (admind_group, provider, scheduled_id, request,
+                storage_guard.wrapOutput (out), storage_guard.wrapOutput (err));
+        }
+        else
+        {
+            try
+            {
+                err.write ((err_message + "\n").getBytes (StandardCharsets.UTF_8));
+            }
+            catch (IOException ignore) {};
+        }
+
+        if (task_thread == null)
+        {
+            // Rejected or unable to start, the reason is on err
+            completion.completed (true);
+            return;
+        }
+
+        task_thread.setLoadMonitor (load_monitor);
+        task_thread.setTaskStats (task_stats);
+        task_thread.setWatchdog (watchdog);
+        task_thread.setHandlerPool (handler_pool);
+        task_thread.setCompletion (completion);
+        task_thread.start ();
+    }
+
+    private void publish_load ()
+    {
+        String dir = admind_dir;
+
+        if (dir != null)
+        {
+            try
+            {
+                AdmindUtil.writeServerLoad (dir, load_monitor.snapshot ());
+            }
+            catch (IOException e)
+            {
+                log.debug ("Exception publishing load on {}: {}", dir, e.toString ());
+            }
+        }
+
+        // Runs on the wheel thread, forever until the wheel stops
+        timing_wheel.schedule (new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                publish_load ();
+            }
+        }, LOAD_PUBLISH_MS);
+    }
+
+    private void probe (long timeout_ms)
+    {
+        // A real request through the whole file path: asyncInvoke(), the watcher,
+        // assign_task(), TaskThread and the status rename, timed as a client would
+        long start = System.nanoTime ();
+        String request = AdmindUtil.asyncInvoke (EchoTask.NAME, PROBE_PAYLOAD, AdmindUtil.PROBE_OPTION);
+
+        if (request == null)
+        {
+            load_monitor.probeFailed ();
+            return;
+        }
+
+        int status = AdmindUtil.asyncWait (request, timeout_ms);
+        long latency_us = (System.nanoTime () - start) / 1000;
+
+        if (status == AdmindUtil.ASYNC_READY
+            && PROBE_PAYLOAD.equalsIgnoreCase (AdmindUtil.asyncResponse (request)))
+        {
+            load_monitor.probeCompleted (latency_us);
+        }
+        else
+        {
+            log.warn ("Self-probe failed after {}us with status {}", latency_us, status);
+            load_monitor.probeFailed ();
+
+            if (status == AdmindUtil.ASYNC_ERROR && AdmindUtil.asyncFinished (request))
+            {
+                // A failed echo leaves its status behind, on timeout asyncWait() already cleaned up
+                AdmindUtil.asyncError (request);
+            }
+        }
+    }
+
+    private void start_probe ()
+    {
+        final long interval_ms = get_long_property (PROBE_INTERVAL_PROPERTY, DEFAULT_PROBE_INTERVAL_MS);
+        final long timeout_ms = get_long_property (PROBE_TIMEOUT_PROPERTY, DEFAULT_PROBE_TIMEOUT_MS);
+
+        if (interval_ms <= 0)
+        {
+            return;
+        }
+
+        // Own thread, a slow probe must never hold the timing wheel
+        probe_thread = new Thread (admind_group, new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                while (!Thread.currentThread ().isInterrupted ())
+                {
+                    try
+                    {
+                        Thread.sleep (interval_ms);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        break;
+                    }
+
+                    if (admind_dir != null)
+                    {
+                        probe (timeout_ms);
+                    }
+                }
+            }
+        }, "Self-Probe [" + admind_dir + "]");
+        probe_thread.setDaemon (true);
+        probe_thread.start ();
+    }
+
+    private void dispatch_pending ()
+    {
+        File[] file_list = new File (admind_dir).listFiles ();
+
+        if (file_list == null)
+        {
+            return;
+        }
+
+        // Deletions may be among the lost events
+        Set<String> existing = new HashSet<> ();
+
+        for (File file: file_list)
+        {
+            existing.add (file.getName ());
+        }
+        claimed_files.retainAll (existing);
+
+        for (File req_file: file_list)
+        {
+            if (req_file.length () == 0)
+            {
+                // Still being written, the next event will bring it
+                continue;
+            }
+
+            // Both paths skip whatever was already taken
+            if (req_file.getName ().endsWith (AdmindUtil.REQUEST_SUFFIX))
+            {
+                if (!claimed_files.contains (req_file.getName ())
+                    && AdmindUtil.responseFile (req_file.getPath ()).exists ())
+                {
+                    // Answered before we were watching, only a rescan pays this stat
+                    claimed_files.add (req_file.getName ());
+                    continue;
+                }
+                assign_task (req_file);
+            }
+            else if (req_file.getName ().endsWith (AdmindUtil.TRANSACTION_SUFFIX))
+            {
+                assign_transaction (req_file);
+            }
         }
     }
 
@@ -188,6 +640,12 @@ public class Admind implements TaskProvider
                 shutdown_watch_service ();
                 admind_dir = null;
 
+                if (work_queue != null)
+                {
+                    // Nowhere to run claimed requests
+                    work_queue.setAdmindDir (null);
+                }
+
                 if (context.getBundle (0).getState () != Bundle.ACTIVE)
                 {
                     log.info ("Stopping AdminD due to framework shutdown");
@@ -207,7 +665,18 @@ public class Admind implements TaskProvider
 
             if (watch_service == null)
             {
-                if (!init_watch_service ())
+                if (init_watch_service ())
+                {
+                    // Events before the registration are lost, catch up on them
+                    transaction_reaper.scan (admind_dir);
+
+                    if (work_queue != null)
+                    {
+                        // We only claim what we are watching for
+                        work_queue.setAdmindDir (admind_dir);
+                    }
+                }
+                else
                 {
                     log.warn ("Unable to activate WatchService: {}", admind_dir);
                 }
@@ -228,11 +697,36 @@ public class Admind implements TaskProvider
                 {
                     for (WatchEvent<?> event: watch_key.pollEvents ())
                     {
-                        if (event.context () instanceof Path)
+                        if (event.kind ().equals (StandardWatchEventKinds.OVERFLOW))
+                        {
+                            // Events were dropped, rebuild the state from the directory
+                            log.warn ("WatchService overflow on {}", admind_dir);
+                            transaction_reaper.scan (admind_dir);
+                            dispatch_pending ();
+                        }
+                        else if (event.context () instanceof Path)
                         {
                             File req_file = new File (admind_dir, event.context ().toString ());
 
-                            if (!req_file.getName ().endsWith (AdmindUtil.REQUEST_SUFFIX)
+                            if (event.kind ().equals (StandardWatchEventKinds.ENTRY_CREATE))
+                            {
+                                transaction_reaper.track (req_file);
+                            }
+                            else if (event.kind ().equals (StandardWatchEventKinds.ENTRY_DELETE))
+                            {
+                                transaction_reaper.forget (req_file);
+                                claimed_files.remove (req_file.getName ());
+                            }
+
+                            if (claimed_files.contains (req_file.getName ()))
+                            {
+                                // Response flushes of a running transaction, skip even the stat
+                                continue;
+                            }
+
+                            boolean is_request = req_file.getName ().endsWith (AdmindUtil.REQUEST_SUFFIX);
+
+                            if ((!is_request && !req_file.getName ().endsWith (AdmindUtil.TRANSACTION_SUFFIX))
                                 || req_file.length () == 0)
                             {
                                 // We ignore empty files
@@ -242,11 +736,22 @@ public class Admind implements TaskProvider
                             if (event.kind ().equals (StandardWatchEventKinds.ENTRY_CREATE)
                                 || event.kind ().equals (StandardWatchEventKinds.ENTRY_MODIFY))
                             {
-                                assign_task (req_file);
+                                if (is_request)
+                                {
+                                    assign_task (req_file);
+                                }
+                                else
+                                {
+                                    assign_transaction (req_file);
+                                }
                             }
                         }
                     }
-                    watch_key.reset ();
+                    if (!watch_key.reset ())
+                    {
+                        // The directory is gone, don't wait for the cached validation to expire
+                        AdmindUtil.invalidateAdmindDir ();
+                    }
                 }
             }
             catch (ClosedWatchServiceException | InterruptedException e)
@@ -272,6 +777,31 @@ public class Admind implements TaskProvider
         log.info ("AdminD stopped");
     }
 
+    private void start_work_queue ()
+    {
+        if (!Boolean.parseBoolean (context.getProperty (QUEUE_ENABLED_PROPERTY)))
+        {
+            return;
+        }
+
+        try
+        {
+            // Requests are claimed only while we have room for them, so idle JVMs take over the bursts
+            work_queue = new WorkQueue (AdmindUtil.setupQueueDir (AdmindUtil.getServerName ()), load_monitor,
+                get_long_property (QUEUE_POLL_PROPERTY, DEFAULT_QUEUE_POLL_MS),
+                (int)get_long_property (QUEUE_MAX_ACTIVE_PROPERTY, Runtime.getRuntime ().availableProcessors ()),
+                get_long_property (TRANSACTION_TTL_PROPERTY, DEFAULT_TRANSACTION_TTL_MS));
+            work_queue_thread = new Thread (admind_group, work_queue, "Work Queue [" + work_queue.getQueueDir () + "]");
+            work_queue_thread.setDaemon (true);
+            work_queue_thread.start ();
+        }
+        catch (IOException e)
+        {
+            log.warn ("Exception setting up work queue: {}", e.toString ());
+            work_queue = null;
+        }
+    }
+
     public boolean start ()
     {
         try
@@ -292,8 +822,57 @@ public class Admind implements TaskProvider
             log.warn ("Exception starting AdminD: {}", e.toString(), e);
         }
 
-        service_tracker.open ();
+        // Warm-up threads run on the group, so it must exist before the trackers
         admind_group = new ThreadGroup (this.getClass ().getSimpleName ());
+        framework_state = new FrameworkState (context,
+            (int)get_long_property (STATE_CHANGES_PROPERTY, DEFAULT_STATE_CHANGES));
+        framework_state.open ();
+        service_tracker.open ();
+        handler_tracker.open ();
+
+        // Orphaned transactions are tracked on a 1s x 512 slots wheel
+        timing_wheel = new TimingWheel (1000, 512);
+        timing_wheel.start (admind_group, "Timing Wheel [" + admind_dir + "]");
+        handler_pool = new HandlerPool (admind_group, "Handler [" + admind_dir + "]",
+            (int)get_long_property (HANDLER_THREADS_PROPERTY, DEFAULT_HANDLER_THREADS),
+            (int)get_long_property (HANDLER_QUEUE_PROPERTY, DEFAULT_HANDLER_QUEUE));
+        transaction_reaper = new TransactionReaper (timing_wheel,
+            get_long_property (TRANSACTION_TTL_PROPERTY, DEFAULT_TRANSACTION_TTL_MS));
+        String record_file = context.getProperty (RECORD_FILE_PROPERTY);
+
+        if (record_file != null)
+        {
+            traffic_recorder = new TrafficRecorder (new File (record_file),
+                get_long_property (RECORD_MAX_BYTES_PROPERTY, DEFAULT_RECORD_MAX_BYTES),
+                Boolean.parseBoolean (context.getProperty (RECORD_PAYLOAD_PROPERTY)),
+                (int)get_long_property (RECORD_PAYLOAD_MAX_PROPERTY, DEFAULT_RECORD_PAYLOAD_MAX));
+            traffic_recorder.start (admind_group, "Traffic Recorder [" + record_file + "]");
+        }
+        storage_guard = new StorageGuard (
+            (int)get_long_property (STORAGE_HIGH_WATER_PROPERTY, DEFAULT_STORAGE_HIGH_WATER),
+            get_long_property (QUOTA_INPUT_PROPERTY, 0), get_long_property (QUOTA_OUTPUT_PROPERTY, 0));
+        watchdog = new Watchdog (timing_wheel, get_long_property (TASK_DEADLINE_PROPERTY, 0));
+        subscriptions = new Subscriptions (timing_wheel,
+            get_long_property (SUBSCRIPTION_RING_PROPERTY, DEFAULT_SUBSCRIPTION_RING),
+            get_long_property (SUBSCRIPTION_HEARTBEAT_PROPERTY, DEFAULT_SUBSCRIPTION_HEARTBEAT_MS));
+        scheduler = new Scheduler (timing_wheel, new Scheduler.Launcher ()
+        {
+            @Override // Scheduler.Launcher
+            public void launch (TaskIdentifier scheduled_id, byte[] request,
+                                OutputStream out, OutputStream err, TaskThread.Completion completion)
+            {
+                launch_scheduled (scheduled_id, request, out, err, completion);
+            }
+
+            @Override // Scheduler.Launcher
+            public String getResultDir ()
+            {
+                return (admind_dir);
+            }
+        });
+        publish_load ();
+        start_work_queue ();
+        start_probe ();
         admind_main_thread = new Thread (admind_group, new Runnable()
         {
             @Override
@@ -308,16 +887,27 @@ public class Admind implements TaskProvider
 
     public void stop ()
     {
-        if (watch_service == null)
-        {
-            return;
-        }
-
+        // The watch service may be down (directory gone), everything else still runs
         try
         {
             // Stop things, wait at most 10 secs for clean stop
+            if (probe_thread != null)
+            {
+                probe_thread.interrupt ();
+            }
+
+            if (work_queue_thread != null)
+            {
+                // No more claims, whatever is still queued is left for the other JVMs
+                work_queue_thread.interrupt ();
+                work_queue_thread.join (1000);
+            }
+
             shutdown_watch_service ();
             service_tracker.close ();
+            handler_tracker.close ();
+            transaction_reaper.clear ();
+            scheduler.clear ();
 
             if (cleanup_admind_dir)
             {
@@ -330,40 +920,110 @@ public class Admind implements TaskProvider
             admind_main_thread.join (10000);
             // TODO: DESTROY admind_group
         }
-        catch (IOException | InterruptedException ignore) {};
+        catch (IOException | InterruptedException ignore) {}
+        finally
+        {
+            // Whatever happened above, no feed, worker, timer, recorder or listener outlives us
+            subscriptions.close ();
+            handler_pool.shutdown ();
+            timing_wheel.stop ();
+
+            if (traffic_recorder != null)
+            {
+                traffic_recorder.close ();
+            }
+            framework_state.close ();
+            startup_timer.close ();
+        }
     }
 
-    class TaskProviderTracker extends ServiceTracker<TaskProvider, TaskProvider>
+    class TaskServiceTracker<S> extends ServiceTracker<S, S>
     {
-        public TaskProviderTracker (BundleContext context)
+        // Both SPIs share the tracking, the logs tell them apart
+        private final String service_kind;
+
+        public TaskServiceTracker (BundleContext context, Class<S> service_class)
         {
-            super (context, TaskProvider.class.getName (), null);
+            super (context, service_class.getName (), null);
+            service_kind = (service_class == TaskHandler.class)? "task handler": "task provider";
         }
 
         @Override // ServiceTracker
-        public TaskProvider addingService (ServiceReference<TaskProvider> reference)
+        public S addingService (ServiceReference<S> reference)
         {
-            TaskProvider service = context.getService (reference);
+            S service = context.getService (reference);
             String name = (String)reference.getProperty (TaskProvider.NAME_FILTER);
 
-            if (name != null)
+            if (name == null)
             {
-                log.info ("Registering task provider: {} ({})", name, service);
-                available_tasks.put (name, service);
+                log.error ("Locator missing on {} {} ", service_kind, service);
+            }
+            else if (!TaskProviderIndex.isValidFilter (name))
+            {
+                log.error ("Invalid locator '{}' on {} {} ", name, service_kind, service);
             }
             else
             {
-                log.error ("Locator missing on task provider {} ", service);
+                Object ranking = reference.getProperty (Constants.SERVICE_RANKING);
+                Object service_id = reference.getProperty (Constants.SERVICE_ID);
+
+                byte[] payload = warmup_payload (reference.getProperty (TaskProvider.WARMUP_PAYLOAD));
+
+                log.info ("Registering {}: {} ({})", service_kind, name, service);
+                TaskProviderIndex.Entry entry = available_tasks.add (name, service,
+                    (ranking instanceof Integer)? (Integer)ranking: 0,
+                    (service_id instanceof Long)? (Long)service_id: Long.MAX_VALUE,
+                    payload == null);
+                Object deadline_ms = reference.getProperty (TaskProvider.DEADLINE_MS);
+
+                if (deadline_ms instanceof Number)
+                {
+                    entry.setDeadline (((Number)deadline_ms).longValue ());
+                }
+
+                if (payload != null)
+                {
+                    // Other providers on the same name keep the traffic meanwhile
+                    int iterations = (int)get_long_property (WARMUP_ITERATIONS_PROPERTY, DEFAULT_WARMUP_ITERATIONS);
+                    Thread warmup = new Thread (admind_group, new ProviderWarmup (entry, payload, iterations),
+                        "Warm-up [" + name + "]");
+                    warmup.setDaemon (true);
+                    entry.setWarmup (warmup);
+                    warmup.start ();
+                }
             }
             return (service);
         }
 
+        private byte[] warmup_payload (Object payload)
+        {
+            if (payload instanceof byte[])
+            {
+                return ((byte[])payload);
+            }
+            else if (payload instanceof String)
+            {
+                return (((String)payload).getBytes (StandardCharsets.UTF_8));
+            }
+            return (null);
+        }
+
         @Override // ServiceTracker
-        public void removedService (ServiceReference<TaskProvider> reference, TaskProvider service)
+        public void removedService (ServiceReference<S> reference, S service)
         {
             String name = (String)reference.getProperty (TaskProvider.NAME_FILTER);
-            log.info ("Unregistering task provider: {} ({})", name, service);
-            available_tasks.remove (name);
+            log.info ("Unregistering {}: {} ({})", service_kind, name, service);
+
+            if (name != null)
+            {
+                // Only this provider goes away, others on the same name stay
+                TaskProviderIndex.Entry entry = available_tasks.remove (name, service);
+
+                if (entry != null)
+                {
+                    entry.cancelWarmup ();
+                }
+            }
             super.removedService (reference, service);
         }
     }
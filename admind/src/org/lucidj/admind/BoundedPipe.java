@@ -0,0 +1,209 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+// In-memory ring buffer connecting two threads, like a shell pipe. The
+// writer blocks while the buffer is full and the reader while it is empty.
+// Closing the output gives EOF to the reader once the buffer drains;
+// closing the input makes further writes fail ("broken pipe"), so a stage
+// never blocks forever on a neighbour that is gone.
+//
+// Unlike java.io.PipedInputStream, it does not care which threads are
+// on each side, or whether they are still alive.
+//
+public class BoundedPipe
+{
+    private final byte[] buffer;
+    private int head;
+    private int count;
+    private boolean output_closed;
+    private boolean input_closed;
+
+    private final InputStream in = new PipeInputStream ();
+    private final OutputStream out = new PipeOutputStream ();
+
+    public BoundedPipe (int size)
+    {
+        buffer = new byte [size];
+    }
+
+    public InputStream getInputStream ()
+    {
+        return (in);
+    }
+
+    public OutputStream getOutputStream ()
+    {
+        return (out);
+    }
+
+    public synchronized boolean isBroken ()
+    {
+        // The reader is gone, nothing written will ever be read
+        return (input_closed);
+    }
+
+    private synchronized int read (byte[] b, int off, int len)
+        throws IOException
+    {
+        while (count == 0)
+        {
+            if (output_closed || input_closed)
+            {
+                return (-1);
+            }
+
+            try
+            {
+                wait ();
+            }
+            catch (InterruptedException e)
+            {
+                throw (new InterruptedIOException ());
+            }
+        }
+
+        int total = Math.min (len, count);
+
+        // At most two copies, the data may wrap around the buffer
+        int first = Math.min (total, buffer.length - head);
+        System.arraycopy (buffer, head, b, off, first);
+        System.arraycopy (buffer, 0, b, off + first, total - first);
+        head = (head + total) % buffer.length;
+        count -= total;
+        notifyAll ();
+        return (total);
+    }
+
+    private synchronized void write (byte[] b, int off, int len)
+        throws IOException
+    {
+        while (len > 0)
+        {
+            if (output_closed)
+            {
+                throw (new IOException ("Pipe closed"));
+            }
+
+            if (input_closed)
+            {
+                throw (new IOException ("Broken pipe"));
+            }
+
+            if (count == buffer.length)
+            {
+                try
+                {
+                    wait ();
+                }
+                catch (InterruptedException e)
+                {
+                    throw (new InterruptedIOException ());
+                }
+                continue;
+            }
+
+            int tail = (head + count) % buffer.length;
+            int chunk = Math.min (len, Math.min (buffer.length - count, buffer.length - tail));
+            System.arraycopy (b, off, buffer, tail, chunk);
+            count += chunk;
+            off += chunk;
+            len -= chunk;
+            notifyAll ();
+        }
+    }
+
+    private synchronized void close_output ()
+    {
+        output_closed = true;
+        notifyAll ();
+    }
+
+    private synchronized void close_input ()
+    {
+        input_closed = true;
+        count = 0;
+        notifyAll ();
+    }
+
+    class PipeInputStream extends InputStream
+    {
+        private final byte[] single = new byte [1];
+
+        @Override
+        public int read ()
+            throws IOException
+        {
+            return ((BoundedPipe.this.read (single, 0, 1) == -1)? -1: single [0] & 0xff);
+        }
+
+        @Override
+        public int read (byte[] b, int off, int len)
+            throws IOException
+        {
+            return ((len == 0)? 0: BoundedPipe.this.read (b, off, len));
+        }
+
+        @Override
+        public int available ()
+        {
+            synchronized (BoundedPipe.this)
+            {
+                return (count);
+            }
+        }
+
+        @Override
+        public void close ()
+        {
+            close_input ();
+        }
+    }
+
+    class PipeOutputStream extends OutputStream
+    {
+        private final byte[] single = new byte [1];
+
+        @Override
+        public void write (int b)
+            throws IOException
+        {
+            single [0] = (byte)b;
+            BoundedPipe.this.write (single, 0, 1);
+        }
+
+        @Override
+        public void write (byte[] b, int off, int len)
+            throws IOException
+        {
+            BoundedPipe.this.write (b, off, len);
+        }
+
+        @Override
+        public void close ()
+        {
+            close_output ();
+        }
+    }
+}
+
+// EOF
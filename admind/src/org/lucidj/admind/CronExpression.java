@@ -0,0 +1,206 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.BitSet;
+
+// Classic 5-field cron: minute hour day-of-month month day-of-week, each a
+// list of '*', 'n', 'n-m', with an optional '/step' (day-of-week 0 and 7
+// are both Sunday). As in cron, when both days are restricted (neither
+// field starts with '*') a day matches either of them. Times are local to
+// the JVM default zone, and DST changes are handled like Vixie cron does:
+// expressions with '*' on the minute or hour follow the real time, the
+// others fire once per local time, right after a gap they fell into and
+// only on the first pass of a repeated hour.
+//
+public class CronExpression
+{
+    private final static int MAX_STEPS = 100000;
+
+    private final String expression;
+    private final BitSet minutes;
+    private final BitSet hours;
+    private final BitSet days;
+    private final BitSet months;
+    private final BitSet weekdays;
+    private final boolean any_day;
+    private final boolean any_weekday;
+    private final boolean fixed_time;
+
+    public CronExpression (String expression)
+    {
+        String[] fields = expression.trim ().split ("\\s+");
+
+        if (fields.length != 5)
+        {
+            throw (new IllegalArgumentException ("Cron needs 5 fields: " + expression));
+        }
+
+        this.expression = expression;
+        this.minutes = parse_field (fields [0], 0, 59);
+        this.hours = parse_field (fields [1], 0, 23);
+        this.days = parse_field (fields [2], 1, 31);
+        this.months = parse_field (fields [3], 1, 12);
+        this.weekdays = parse_field (fields [4], 0, 7);
+        this.any_day = fields [2].startsWith ("*");
+        this.any_weekday = fields [4].startsWith ("*");
+        this.fixed_time = !fields [0].startsWith ("*") && !fields [1].startsWith ("*");
+
+        if (weekdays.get (7))
+        {
+            weekdays.set (0);
+        }
+    }
+
+    private static int parse_number (String value, int min, int max)
+    {
+        try
+        {
+            int number = Integer.parseInt (value);
+
+            if (number >= min && number <= max)
+            {
+                return (number);
+            }
+        }
+        catch (NumberFormatException ignore) {};
+
+        throw (new IllegalArgumentException ("Invalid cron value '" + value + "', expected " + min + "-" + max));
+    }
+
+    private static BitSet parse_field (String field, int min, int max)
+    {
+        BitSet bits = new BitSet (max + 1);
+
+        for (String part: field.split (","))
+        {
+            int slash = part.indexOf ('/');
+            String range = (slash == -1)? part: part.substring (0, slash);
+            int step = (slash == -1)? 1: parse_number (part.substring (slash + 1), 1, max);
+            int from, to;
+
+            if (range.equals ("*"))
+            {
+                from = min;
+                to = max;
+            }
+            else if (range.indexOf ('-') > 0)
+            {
+                from = parse_number (range.substring (0, range.indexOf ('-')), min, max);
+                to = parse_number (range.substring (range.indexOf ('-') + 1), from, max);
+            }
+            else
+            {
+                from = parse_number (range, min, max);
+                to = (slash == -1)? from: max;
+            }
+
+            for (int value = from; value <= to; value += step)
+            {
+                bits.set (value);
+            }
+        }
+        return (bits);
+    }
+
+    private boolean day_matches (LocalDateTime time)
+    {
+        boolean day = days.get (time.getDayOfMonth ());
+        boolean weekday = weekdays.get (time.getDayOfWeek ().getValue () % 7);
+
+        if (any_day || any_weekday)
+        {
+            return (day && weekday);
+        }
+        return (day || weekday);
+    }
+
+    private boolean matches (LocalDateTime time)
+    {
+        return (months.get (time.getMonthValue ()) && day_matches (time)
+            && hours.get (time.getHour ()) && minutes.get (time.getMinute ()));
+    }
+
+    private boolean gap_matches (ZonedDateTime time)
+    {
+        // Is this the first minute after a DST gap holding a matching local time?
+        ZonedDateTime previous = time.minusMinutes (1);
+        int gap_minutes = (time.getOffset ().getTotalSeconds () - previous.getOffset ().getTotalSeconds ()) / 60;
+        LocalDateTime end = time.toLocalDateTime ();
+
+        for (LocalDateTime local = end.minusMinutes (gap_minutes); local.isBefore (end); local = local.plusMinutes (1))
+        {
+            if (matches (local))
+            {
+                return (true);
+            }
+        }
+        return (false);
+    }
+
+    // The first matching minute after 'after_ms', or -1 if there's none ahead
+    public long next (long after_ms)
+    {
+        ZonedDateTime time = Instant.ofEpochMilli (after_ms).atZone (ZoneId.systemDefault ())
+            .truncatedTo (ChronoUnit.MINUTES).plusMinutes (1);
+
+        for (int step = 0; step < MAX_STEPS; step++)
+        {
+            if (fixed_time && gap_matches (time))
+            {
+                return (time.toInstant ().toEpochMilli ());
+            }
+
+            if (!months.get (time.getMonthValue ()))
+            {
+                time = time.plusMonths (1).withDayOfMonth (1).truncatedTo (ChronoUnit.DAYS);
+            }
+            else if (!day_matches (time.toLocalDateTime ()))
+            {
+                time = time.plusDays (1).truncatedTo (ChronoUnit.DAYS);
+            }
+            else if (!hours.get (time.getHour ()))
+            {
+                time = time.plusHours (1).truncatedTo (ChronoUnit.HOURS);
+            }
+            else if (!minutes.get (time.getMinute ())
+                || (fixed_time && !time.equals (time.withEarlierOffsetAtOverlap ())))
+            {
+                // Fixed times already fired on the first pass of a repeated hour
+                time = time.plusMinutes (1);
+            }
+            else
+            {
+                return (time.toInstant ().toEpochMilli ());
+            }
+        }
+        return (-1);
+    }
+
+    @Override
+    public String toString ()
+    {
+        return (expression);
+    }
+}
+
+// EOF
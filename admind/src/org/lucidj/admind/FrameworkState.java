@@ -0,0 +1,246 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+// Versioned model of the bundles and services, fed by the framework
+// listeners. Every effective change bumps the version and goes into a ring
+// holding the last 'capacity' changes, so a client that knows version V gets
+// just the changes after V, unless they already left the ring. Entries are
+// one line each:
+//
+//   bundle <id> <state> <symbolic-name> <version>
+//   service <id> bundle=<id> ranking=<ranking> <objectClass>...
+//   -bundle <id>
+//   -service <id>
+//
+// The epoch changes on every AdminD start, versions from another epoch
+// can't be compared and get a full snapshot.
+//
+public class FrameworkState implements BundleListener, ServiceListener
+{
+    public final static String BUNDLE = "bundle";
+    public final static String SERVICE = "service";
+    public final static String REMOVED = "-";
+
+    private final BundleContext context;
+    private final String epoch = Long.toString (System.currentTimeMillis (), 36);
+    private final String[] ring;
+    private final Map<Long, String> bundles = new TreeMap<> ();
+    private final Map<Long, String> services = new TreeMap<> ();
+    private long version;
+    private Set<String> seed_removed;
+
+    public FrameworkState (BundleContext context, int capacity)
+    {
+        this.context = context;
+        this.ring = new String [Math.max (capacity, 1)];
+    }
+
+    public void open ()
+    {
+        // Listen first, then seed: changes in between are seen twice at worst.
+        // Removals seen while seeding are remembered (ids are never reused), so
+        // a stale seed can't bring back what is already gone.
+        synchronized (this)
+        {
+            seed_removed = new HashSet<> ();
+        }
+        context.addBundleListener (this);
+        context.addServiceListener (this);
+
+        for (Bundle bundle: context.getBundles ())
+        {
+            seed_bundle (bundle);
+        }
+
+        try
+        {
+            ServiceReference<?>[] references = context.getAllServiceReferences (null, null);
+
+            if (references != null)
+            {
+                for (ServiceReference<?> reference: references)
+                {
+                    seed_service (reference);
+                }
+            }
+        }
+        catch (InvalidSyntaxException ignore) {};
+
+        synchronized (this)
+        {
+            seed_removed = null;
+        }
+    }
+
+    public void close ()
+    {
+        context.removeServiceListener (this);
+        context.removeBundleListener (this);
+    }
+
+    public String getEpoch ()
+    {
+        return (epoch);
+    }
+
+    public synchronized long getVersion ()
+    {
+        return (version);
+    }
+
+    private static String state_name (int state)
+    {
+        switch (state)
+        {
+            case Bundle.INSTALLED:   return ("INSTALLED");
+            case Bundle.RESOLVED:    return ("RESOLVED");
+            case Bundle.STARTING:    return ("STARTING");
+            case Bundle.STOPPING:    return ("STOPPING");
+            case Bundle.ACTIVE:      return ("ACTIVE");
+            case Bundle.UNINSTALLED: return ("UNINSTALLED");
+            default:                 return (Integer.toString (state));
+        }
+    }
+
+    private synchronized void update (Map<Long, String> entries, String kind, long id, String line)
+    {
+        if (line == null && seed_removed != null)
+        {
+            seed_removed.add (kind + " " + id);
+        }
+
+        String previous = (line == null)? entries.remove (id): entries.put (id, line);
+
+        if ((line == null)? previous == null: line.equals (previous))
+        {
+            // Nothing really changed, no new version
+            return;
+        }
+
+        version++;
+        ring [(int)(version % ring.length)] = (line == null)? REMOVED + kind + " " + id: line;
+    }
+
+    private void update_bundle (Bundle bundle, boolean removed)
+    {
+        // The line always has the current state, so stale events are harmless
+        String line = removed? null: BUNDLE + " " + bundle.getBundleId () + " " + state_name (bundle.getState ())
+            + " " + bundle.getSymbolicName () + " " + bundle.getVersion ();
+        update (bundles, BUNDLE, bundle.getBundleId (), line);
+    }
+
+    private synchronized void seed_bundle (Bundle bundle)
+    {
+        // Under the lock, so no event gets in between the check and the update
+        if (bundle.getState () != Bundle.UNINSTALLED
+            && !seed_removed.contains (BUNDLE + " " + bundle.getBundleId ()))
+        {
+            update_bundle (bundle, false);
+        }
+    }
+
+    private synchronized void seed_service (ServiceReference<?> reference)
+    {
+        long service_id = ((Number)reference.getProperty (Constants.SERVICE_ID)).longValue ();
+
+        // getBundle() is null once the service is unregistered
+        if (reference.getBundle () != null && !seed_removed.contains (SERVICE + " " + service_id))
+        {
+            update_service (reference, false);
+        }
+    }
+
+    private void update_service (ServiceReference<?> reference, boolean removed)
+    {
+        long service_id = ((Number)reference.getProperty (Constants.SERVICE_ID)).longValue ();
+        String line = null;
+
+        if (!removed)
+        {
+            Object ranking = reference.getProperty (Constants.SERVICE_RANKING);
+            Bundle bundle = reference.getBundle ();
+            StringBuilder sb = new StringBuilder (SERVICE).append (' ').append (service_id);
+
+            sb.append (" bundle=").append ((bundle == null)? -1: bundle.getBundleId ());
+            sb.append (" ranking=").append ((ranking instanceof Integer)? ranking: 0);
+
+            for (String object_class: (String[])reference.getProperty (Constants.OBJECTCLASS))
+            {
+                sb.append (' ').append (object_class);
+            }
+            line = sb.toString ();
+        }
+        update (services, SERVICE, service_id, line);
+    }
+
+    @Override // BundleListener
+    public void bundleChanged (BundleEvent event)
+    {
+        update_bundle (event.getBundle (), event.getType () == BundleEvent.UNINSTALLED);
+    }
+
+    @Override // ServiceListener
+    public void serviceChanged (ServiceEvent event)
+    {
+        int type = event.getType ();
+        update_service (event.getServiceReference (),
+            type == ServiceEvent.UNREGISTERING || type == ServiceEvent.MODIFIED_ENDMATCH);
+    }
+
+    // Adds the changes after 'since' in order and returns the version they
+    // lead to, or -1 when the client must start over with a full snapshot
+    public synchronized long getChanges (String client_epoch, long since, List<String> changes)
+    {
+        if (!epoch.equals (client_epoch) || since < 0 || since > version || version - since > ring.length)
+        {
+            return (-1);
+        }
+
+        for (long change = since + 1; change <= version; change++)
+        {
+            changes.add (ring [(int)(change % ring.length)]);
+        }
+        return (version);
+    }
+
+    // Adds every bundle then every service and returns the version they reflect
+    public synchronized long getSnapshot (List<String> lines)
+    {
+        lines.addAll (bundles.values ());
+        lines.addAll (services.values ());
+        return (version);
+    }
+}
+
+// EOF
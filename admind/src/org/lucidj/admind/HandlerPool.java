@@ -0,0 +1,158 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.lucidj.admind;
+
+import org.lucidj.api.admind.TaskContext;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs TaskHandler requests on a bounded set of reusable threads. Every
+// worker owns a Context that is refilled for each request, so a handler
+// call allocates neither a thread nor a context. Workers are created on
+// demand and retire when idle, bursts wait on a bounded queue. With the
+// queue full the request is refused and the caller gives it a thread of
+// its own, the pool never makes a request wait for long.
+//
+public class HandlerPool
+{
+    private final static long KEEP_ALIVE_MS = 60000;
+
+    private final ThreadPoolExecutor executor;
+
+    public HandlerPool (final ThreadGroup group, final String name, int max_threads, int max_queued)
+    {
+        ThreadFactory factory = new ThreadFactory ()
+        {
+            private final AtomicInteger counter = new AtomicInteger ();
+
+            @Override // ThreadFactory
+            public Thread newThread (Runnable runnable)
+            {
+                Thread worker = new Worker (group, runnable, name + " #" + counter.incrementAndGet ());
+                worker.setDaemon (true);
+                return (worker);
+            }
+        };
+        // Core threads also time out, an idle server keeps no workers
+        int threads = Math.max (max_threads, 1);
+        executor = new ThreadPoolExecutor (threads, threads, KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable> (Math.max (max_queued, 1)), factory);
+        executor.allowCoreThreadTimeOut (true);
+    }
+
+    public boolean execute (Runnable request)
+    {
+        try
+        {
+            executor.execute (request);
+            return (true);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // Queue full or the pool is shut down
+            return (false);
+        }
+    }
+
+    public void shutdown ()
+    {
+        // Running handlers finish on their own, no new requests are taken
+        executor.shutdown ();
+    }
+
+    public static Context getContext ()
+    {
+        // Requests running outside the pool get a context of their own
+        Thread current = Thread.currentThread ();
+        return ((current instanceof Worker)? ((Worker)current).context: new Context ());
+    }
+
+    static class Worker extends Thread
+    {
+        private final Context context = new Context ();
+
+        Worker (ThreadGroup group, Runnable runnable, String name)
+        {
+            super (group, runnable, name);
+        }
+    }
+
+    public static class Context implements TaskContext
+    {
+        private String task_name;
+        private String[] task_options;
+        private InputStream in;
+        private OutputStream out;
+        private OutputStream err;
+
+        public Context set (String task_name, String[] task_options, InputStream in, OutputStream out, OutputStream err)
+        {
+            this.task_name = task_name;
+            this.task_options = task_options;
+            this.in = in;
+            this.out = out;
+            this.err = err;
+            return (this);
+        }
+
+        public void clear ()
+        {
+            // Nothing of the last request stays reachable from an idle worker
+            set (null, null, null, null, null);
+        }
+
+        @Override // TaskContext
+        public String getTaskName ()
+        {
+            return (task_name);
+        }
+
+        @Override // TaskContext
+        public String[] getTaskOptions ()
+        {
+            return (task_options);
+        }
+
+        @Override // TaskContext
+        public InputStream getInputStream ()
+        {
+            return (in);
+        }
+
+        @Override // TaskContext
+        public OutputStream getOutputStream ()
+        {
+            return (out);
+        }
+
+        @Override // TaskContext
+        public OutputStream getErrorStream ()
+        {
+            return (err);
+        }
+    }
+}
+
+// EOF
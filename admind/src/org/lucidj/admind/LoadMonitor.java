@@ -0,0 +1,218 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind;
+
+import org.lucidj.admind.shared.AdmindUtil;
+
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Live load figures for this JVM: tasks waiting to run (claimed from the
+// work queue but not dispatched yet, or dispatched but not started), tasks
+// running and the p99 latency over the last LATENCY_WINDOW tasks finished
+// within LATENCY_MAX_AGE_MS (0 once the JVM went idle, an old burst doesn't
+// stick), along with the round-trip latency seen by the last PROBE_WINDOW
+// self-probes (see Admind.probe(), about 10 minutes at the default interval,
+// an old stall ages out quickly). They are published on the server load
+// descriptor (see AdmindUtil.writeServerLoad()), so clients may route to
+// the least loaded JVM sharing a server.name.
+//
+public class LoadMonitor
+{
+    private final static int LATENCY_WINDOW = 1024;
+    private final static long LATENCY_MAX_AGE_MS = 60000;
+    private final static int PROBE_WINDOW = 64;
+
+    private final AtomicInteger queued = new AtomicInteger ();
+    private final AtomicInteger active = new AtomicInteger ();
+    private final AtomicLong completed = new AtomicLong ();
+    private final LatencyWindow task_latency = new LatencyWindow (LATENCY_WINDOW, LATENCY_MAX_AGE_MS);
+    private final LatencyWindow probe_latency = new LatencyWindow (PROBE_WINDOW, 0);
+    private final AtomicLong probe_failures = new AtomicLong ();
+
+    public void taskQueued ()
+    {
+        queued.incrementAndGet ();
+    }
+
+    public boolean tryQueued (int max_load)
+    {
+        // Takes a queued slot only while running plus queued stays below max_load
+        for (;;)
+        {
+            int current = queued.get ();
+
+            if (active.get () + current >= max_load)
+            {
+                return (false);
+            }
+
+            if (queued.compareAndSet (current, current + 1))
+            {
+                return (true);
+            }
+        }
+    }
+
+    public void taskUnqueued ()
+    {
+        // Gave up before starting, like a claim that was lost or rejected
+        queued.decrementAndGet ();
+    }
+
+    public void taskStarted ()
+    {
+        queued.decrementAndGet ();
+        active.incrementAndGet ();
+    }
+
+    public void taskFinished (long start_nanos)
+    {
+        long elapsed_us = (System.nanoTime () - start_nanos) / 1000;
+
+        active.decrementAndGet ();
+        completed.incrementAndGet ();
+
+        task_latency.add (elapsed_us);
+    }
+
+    public void probeFinished ()
+    {
+        // The self-probe request itself, only leaves the running tasks
+        active.decrementAndGet ();
+    }
+
+    public void probeCompleted (long latency_us)
+    {
+        probe_latency.add (latency_us);
+    }
+
+    public void probeFailed ()
+    {
+        probe_failures.incrementAndGet ();
+    }
+
+    public int getQueued ()
+    {
+        return (queued.get ());
+    }
+
+    public int getActive ()
+    {
+        return (active.get ());
+    }
+
+    public long getCompleted ()
+    {
+        return (completed.get ());
+    }
+
+    public long getP99Micros ()
+    {
+        return (task_latency.percentiles (0.99)[0]);
+    }
+
+    public Properties snapshot ()
+    {
+        Properties load = new Properties ();
+        load.setProperty (AdmindUtil.LOAD_QUEUED, Integer.toString (getQueued ()));
+        load.setProperty (AdmindUtil.LOAD_ACTIVE, Integer.toString (getActive ()));
+        load.setProperty (AdmindUtil.LOAD_P99_US, Long.toString (getP99Micros ()));
+        load.setProperty (AdmindUtil.LOAD_COMPLETED, Long.toString (getCompleted ()));
+
+        long[] probe = probe_latency.percentiles (0.5, 0.99, 1.0);
+        load.setProperty (AdmindUtil.PROBE_P50_US, Long.toString (probe [0]));
+        load.setProperty (AdmindUtil.PROBE_P99_US, Long.toString (probe [1]));
+        load.setProperty (AdmindUtil.PROBE_MAX_US, Long.toString (probe [2]));
+        load.setProperty (AdmindUtil.PROBE_LAST_US, Long.toString (probe_latency.last ()));
+        load.setProperty (AdmindUtil.PROBE_FAILURES, Long.toString (probe_failures.get ()));
+        return (load);
+    }
+
+    static class LatencyWindow
+    {
+        private final long[] latencies_us;
+        private final long[] added_nanos;
+        private final long max_age_nanos;
+        private int count;
+        private int next;
+
+        LatencyWindow (int size, long max_age_ms)
+        {
+            // A max_age_ms of 0 keeps every sample until overwritten
+            latencies_us = new long [size];
+            added_nanos = new long [size];
+            max_age_nanos = max_age_ms * 1000000L;
+        }
+
+        synchronized void add (long latency_us)
+        {
+            latencies_us [next] = latency_us;
+            added_nanos [next] = System.nanoTime ();
+            next = (next + 1) % latencies_us.length;
+            count = Math.min (count + 1, latencies_us.length);
+        }
+
+        private synchronized long[] current ()
+        {
+            if (max_age_nanos == 0)
+            {
+                return (Arrays.copyOf (latencies_us, count));
+            }
+
+            long now = System.nanoTime ();
+            long[] window = new long [count];
+            int fresh = 0;
+
+            for (int i = 0; i < count; i++)
+            {
+                if (now - added_nanos [i] <= max_age_nanos)
+                {
+                    window [fresh++] = latencies_us [i];
+                }
+            }
+            return ((fresh == count)? window: Arrays.copyOf (window, fresh));
+        }
+
+        synchronized long last ()
+        {
+            return ((count == 0)? 0: latencies_us [(next + latencies_us.length - 1) % latencies_us.length]);
+        }
+
+        long[] percentiles (double... ranks)
+        {
+            long[] window = current ();
+            long[] values = new long [ranks.length];
+
+            if (window.length != 0)
+            {
+                // Once a second on at most LATENCY_WINDOW entries, sorting is fine
+                Arrays.sort (window);
+
+                for (int i = 0; i < ranks.length; i++)
+                {
+                    values [i] = window [Math.max ((int)Math.ceil (window.length * ranks [i]) - 1, 0)];
+                }
+            }
+            return (values);
+        }
+    }
+}
+
+// EOF
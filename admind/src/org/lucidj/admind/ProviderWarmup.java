@@ -0,0 +1,145 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind;
+
+import org.lucidj.api.admind.Task;
+import org.lucidj.api.admind.TaskContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public class ProviderWarmup implements Runnable, TaskContext
+{
+    private final static Logger log = LoggerFactory.getLogger (ProviderWarmup.class);
+
+    private final static String[] NO_OPTIONS = new String [0];
+
+    private final TaskProviderIndex.Entry entry;
+    private final String name;
+    private final byte[] payload;
+    private final int iterations;
+
+    private InputStream in;
+    private final OutputStream discard = new OutputStream ()
+    {
+        @Override
+        public void write (int b) {}
+
+        @Override
+        public void write (byte[] b, int off, int len) {}
+    };
+
+    public ProviderWarmup (TaskProviderIndex.Entry entry, byte[] payload, int iterations)
+    {
+        String filter = entry.getFilter ();
+
+        this.entry = entry;
+        this.payload = payload;
+        this.iterations = iterations;
+
+        // Wildcard providers are warmed up with the bare prefix as name
+        this.name = (filter.charAt (filter.length () - 1) == TaskProviderIndex.WILDCARD)?
+            filter.substring (0, filter.length () - 1): filter;
+    }
+
+    private boolean run_once ()
+        throws Exception
+    {
+        in = new ByteArrayInputStream (payload);
+
+        if (entry.getHandler () != null)
+        {
+            return (entry.getHandler ().handle (this));
+        }
+
+        Task task = entry.getProvider ().createTask (in, discard, discard, name, NO_OPTIONS);
+        return (task.run ());
+    }
+
+    @Override // Runnable
+    public void run ()
+    {
+        long start = System.nanoTime ();
+        int count = 0;
+
+        try
+        {
+            while (count < iterations && !Thread.currentThread ().isInterrupted ())
+            {
+                count++;
+
+                if (!run_once ())
+                {
+                    log.warn ("Warm-up of {} returned fail status", entry.getFilter ());
+                    break;
+                }
+            }
+        }
+        catch (Throwable t)
+        {
+            log.warn ("Warm-up of {} threw {}", entry.getFilter (), t.toString ());
+        }
+        finally
+        {
+            // Whatever happened, real traffic is better than no traffic at all
+            entry.setReady (true);
+        }
+
+        if (Thread.currentThread ().isInterrupted ())
+        {
+            log.info ("Warm-up of {} cancelled after {} runs", entry.getFilter (), count);
+            return;
+        }
+        log.info ("Provider {} ready after {} warm-up runs in {}ms",
+            entry.getFilter (), count, (System.nanoTime () - start) / 1000000);
+    }
+
+    @Override // TaskContext
+    public String getTaskName ()
+    {
+        return (name);
+    }
+
+    @Override // TaskContext
+    public String[] getTaskOptions ()
+    {
+        return (NO_OPTIONS);
+    }
+
+    @Override // TaskContext
+    public InputStream getInputStream ()
+    {
+        return (in);
+    }
+
+    @Override // TaskContext
+    public OutputStream getOutputStream ()
+    {
+        return (discard);
+    }
+
+    @Override // TaskContext
+    public OutputStream getErrorStream ()
+    {
+        return (discard);
+    }
+}
+
+// EOF
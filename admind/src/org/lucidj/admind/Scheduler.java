@@ -0,0 +1,356 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind;
+
+import org.lucidj.admind.shared.AdmindUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Recurring tasks run by AdminD itself, so a poll becomes a file read. The
+// schedules live on the timing wheel (thus a 1 tick resolution) and fire:
+//
+// rate:<ms>   every <ms> from the first run, a run still going skips its turn,
+//             as do the turns missed while the wheel was held up;
+// delay:<ms>  <ms> after the previous run finished;
+// cron:<expr> on every minute matching the expression (see CronExpression).
+//
+// Each run goes through the Launcher like a regular request, with in-memory
+// streams, and the latest result replaces schedule_<id>.result on the AdminD
+// dir (see AdmindUtil.writeScheduleResult()). Schedules are not persistent.
+//
+public class Scheduler
+{
+    private final static Logger log = LoggerFactory.getLogger (Scheduler.class);
+
+    public final static String RATE = "rate:";
+    public final static String DELAY = "delay:";
+    public final static String CRON = "cron:";
+
+    private final static String VALID_ID = "\\w{1,64}";
+
+    private final TimingWheel timing_wheel;
+    private final Launcher launcher;
+    private final Map<String, Schedule> schedules = new TreeMap<> ();
+
+    public interface Launcher
+    {
+        // Starts the identified task and calls completion once done, or right
+        // away as failed with the reason on err when the task can't run
+        void launch (TaskIdentifier task_id, byte[] request, OutputStream out, OutputStream err,
+                     TaskThread.Completion completion);
+
+        String getResultDir ();
+    }
+
+    public Scheduler (TimingWheel timing_wheel, Launcher launcher)
+    {
+        this.timing_wheel = timing_wheel;
+        this.launcher = launcher;
+    }
+
+    public Schedule add (String id, String spec, String task, String[] options, byte[] request)
+    {
+        if (!id.matches (VALID_ID))
+        {
+            throw (new IllegalArgumentException ("Invalid schedule id: " + id));
+        }
+
+        StringBuilder sb = new StringBuilder (task);
+
+        if (options.length > 0)
+        {
+            sb.append ('-');
+
+            for (String option: options)
+            {
+                sb.append ('-').append (option);
+            }
+        }
+
+        // The schedule id doubles as the unique id, every run looks the same
+        TaskIdentifier task_id = new TaskIdentifier ();
+
+        if (!task_id.parse (sb.append ("--").append (AdmindUtil.SCHEDULE_PREFIX).append (id).toString ()))
+        {
+            throw (new IllegalArgumentException ("Invalid task name or options: " + sb));
+        }
+
+        Schedule schedule = new Schedule (id, spec, task_id, request);
+        long first_ms = schedule.next_delay (System.currentTimeMillis ());
+        Schedule previous;
+
+        synchronized (schedules)
+        {
+            previous = schedules.put (id, schedule);
+            schedule.arm (first_ms);
+        }
+
+        if (previous != null)
+        {
+            previous.cancel ();
+        }
+        log.info ("Schedule {} added: {} {}", id, spec, task_id);
+        return (schedule);
+    }
+
+    public boolean cancel (String id)
+    {
+        Schedule schedule;
+
+        synchronized (schedules)
+        {
+            schedule = schedules.remove (id);
+        }
+
+        if (schedule == null)
+        {
+            return (false);
+        }
+        schedule.cancel ();
+        log.info ("Schedule {} cancelled", id);
+        return (true);
+    }
+
+    public List<Schedule> getSchedules ()
+    {
+        synchronized (schedules)
+        {
+            return (new ArrayList<> (schedules.values ()));
+        }
+    }
+
+    public void clear ()
+    {
+        for (Schedule schedule: getSchedules ())
+        {
+            cancel (schedule.id);
+        }
+    }
+
+    private static long parse_period (String spec, String kind)
+    {
+        String period = spec.substring (kind.length ()).trim ();
+
+        if (!period.matches ("\\d{1,18}") || Long.parseLong (period) == 0)
+        {
+            throw (new IllegalArgumentException ("Invalid period: " + spec));
+        }
+        return (Long.parseLong (period));
+    }
+
+    public class Schedule implements Runnable
+    {
+        private final String id;
+        private final String spec;
+        private final TaskIdentifier task_id;
+        private final byte[] request;
+        private final long period_ms;
+        private final CronExpression cron;
+        private long next_ms;
+        private long runs;
+        private long skipped;
+        private long failures;
+        private boolean running;
+        private boolean cancelled;
+        private TimingWheel.Timeout timeout;
+
+        Schedule (String id, String spec, TaskIdentifier task_id, byte[] request)
+        {
+            this.id = id;
+            this.spec = spec;
+            this.task_id = task_id;
+            this.request = request;
+
+            if (spec.startsWith (RATE))
+            {
+                period_ms = parse_period (spec, RATE);
+                cron = null;
+            }
+            else if (spec.startsWith (DELAY))
+            {
+                period_ms = parse_period (spec, DELAY);
+                cron = null;
+            }
+            else if (spec.startsWith (CRON))
+            {
+                period_ms = 0;
+                cron = new CronExpression (spec.substring (CRON.length ()));
+            }
+            else
+            {
+                throw (new IllegalArgumentException ("Unknown schedule '" + spec
+                    + "', expected rate:, delay: or cron:"));
+            }
+        }
+
+        // Takes the clock as argument, the tests can drive it
+        long next_delay (long now)
+        {
+            if (cron == null && (next_ms == 0 || spec.startsWith (DELAY)))
+            {
+                next_ms = now + period_ms;
+                return (period_ms);
+            }
+
+            if (cron == null)
+            {
+                // Rates keep their pace from the planned time, not from when we got called,
+                // but the turns already past are skipped rather than fired back to back
+                next_ms += period_ms;
+
+                if (next_ms < now)
+                {
+                    long missed = (now - next_ms + period_ms - 1) / period_ms;
+                    skipped += missed;
+                    next_ms += missed * period_ms;
+                }
+                return (next_ms - now);
+            }
+
+            if ((next_ms = cron.next (now)) == -1)
+            {
+                throw (new IllegalArgumentException ("Cron never fires: " + cron));
+            }
+            return (next_ms - now);
+        }
+
+        private synchronized void arm (long delay_ms)
+        {
+            if (!cancelled)
+            {
+                timeout = timing_wheel.schedule (this, delay_ms);
+            }
+        }
+
+        synchronized void cancel ()
+        {
+            cancelled = true;
+
+            if (timeout != null)
+            {
+                timeout.cancel ();
+            }
+        }
+
+        @Override // Runnable
+        public void run ()
+        {
+            // On the wheel thread, only starts the task
+            boolean launch;
+
+            synchronized (this)
+            {
+                if (cancelled)
+                {
+                    return;
+                }
+
+                if (!spec.startsWith (DELAY))
+                {
+                    arm (next_delay (System.currentTimeMillis ()));
+                }
+
+                launch = !running;
+                running |= launch;
+                skipped += launch? 0: 1;
+            }
+
+            if (launch)
+            {
+                launch ();
+            }
+        }
+
+        private void launch ()
+        {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream ();
+            final ByteArrayOutputStream err = new ByteArrayOutputStream ();
+            final long started_ms = System.currentTimeMillis ();
+
+            TaskThread.Completion completion = new TaskThread.Completion ()
+            {
+                @Override // TaskThread.Completion
+                public void completed (boolean failed)
+                {
+                    Schedule.this.completed (started_ms, out, err, failed);
+                }
+            };
+
+            launcher.launch (task_id, request, out, err, completion);
+        }
+
+        private void completed (long started_ms, ByteArrayOutputStream out, ByteArrayOutputStream err,
+                                boolean failed)
+        {
+            long finished_ms = System.currentTimeMillis ();
+            String header;
+
+            synchronized (this)
+            {
+                running = false;
+                runs++;
+                failures += failed? 1: 0;
+                header = "id=" + id + " run=" + runs + " status=" + (failed? "failed": "ok")
+                    + " started_ms=" + started_ms + " finished_ms=" + finished_ms + " skipped=" + skipped;
+            }
+
+            String dir = launcher.getResultDir ();
+
+            if (dir != null)
+            {
+                try
+                {
+                    AdmindUtil.writeScheduleResult (dir, id, header, failed? err.toByteArray (): out.toByteArray ());
+                }
+                catch (IOException e)
+                {
+                    log.warn ("Exception publishing schedule {}: {}", id, e.toString ());
+                }
+            }
+
+            synchronized (this)
+            {
+                if (spec.startsWith (DELAY))
+                {
+                    arm (next_delay (finished_ms));
+                }
+            }
+        }
+
+        public String getId ()
+        {
+            return (id);
+        }
+
+        @Override
+        public synchronized String toString ()
+        {
+            return ("id=" + id + " task=" + task_id.getName () + " runs=" + runs + " failures=" + failures
+                + " skipped=" + skipped + " running=" + running + " next_ms=" + next_ms + " spec=" + spec);
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.startlevel.BundleStartLevel;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Times every bundle activation, from STARTING to STARTED, as seen by a
+// synchronous listener (so the timestamps are taken on the starting thread,
+// right around the activator). Only bundles starting after AdminD itself
+// are seen, which is why it should be installed as early as possible and
+// why AdminD deserves a low start level. Only the startup is timed: a bundle
+// keeps its first activation, and whatever starts once the framework is
+// STARTED (restarts, bundles installed later) is only counted, so the level
+// spans never stretch into runtime.
+//
+public class StartupTimer implements SynchronousBundleListener, FrameworkListener
+{
+    private final static long JVM_START_MS = ManagementFactory.getRuntimeMXBean ().getStartTime ();
+
+    private final BundleContext context;
+    private final Map<Long, Activation> activations = new ConcurrentHashMap<> ();
+    private final AtomicInteger runtime_starts = new AtomicInteger ();
+    private volatile long framework_started_ms = -1;
+
+    public StartupTimer (BundleContext context)
+    {
+        this.context = context;
+    }
+
+    public void open ()
+    {
+        context.addBundleListener (this);
+        context.addFrameworkListener (this);
+    }
+
+    public void close ()
+    {
+        context.removeFrameworkListener (this);
+        context.removeBundleListener (this);
+    }
+
+    private static int start_level (Bundle bundle)
+    {
+        try
+        {
+            BundleStartLevel start_level = bundle.adapt (BundleStartLevel.class);
+            return ((start_level == null)? -1: start_level.getStartLevel ());
+        }
+        catch (IllegalStateException e)
+        {
+            // Uninstalled meanwhile
+            return (-1);
+        }
+    }
+
+    @Override // SynchronousBundleListener
+    public void bundleChanged (BundleEvent event)
+    {
+        Bundle bundle = event.getBundle ();
+
+        switch (event.getType ())
+        {
+            case BundleEvent.STARTING:
+            {
+                Activation activation = activations.get (bundle.getBundleId ());
+
+                if (framework_started_ms != -1 || (activation != null && activation.isComplete ()))
+                {
+                    // Not part of the startup anymore
+                    runtime_starts.incrementAndGet ();
+
+                    if (activation != null)
+                    {
+                        activation.restarted ();
+                    }
+                }
+                else
+                {
+                    // The first activation, or a retry of one that failed
+                    activations.put (bundle.getBundleId (), new Activation (bundle, start_level (bundle)));
+                }
+                break;
+            }
+            case BundleEvent.STARTED:
+            {
+                Activation activation = activations.get (bundle.getBundleId ());
+
+                // We may see STARTED alone, like our own bundle does
+                if (activation != null && !activation.isComplete () && framework_started_ms == -1)
+                {
+                    activation.started ();
+                }
+                break;
+            }
+            case BundleEvent.UNINSTALLED:
+            {
+                activations.remove (bundle.getBundleId ());
+                break;
+            }
+        }
+    }
+
+    @Override // FrameworkListener
+    public void frameworkEvent (FrameworkEvent event)
+    {
+        if (event.getType () == FrameworkEvent.STARTED)
+        {
+            framework_started_ms = System.currentTimeMillis () - JVM_START_MS;
+        }
+    }
+
+    // Milliseconds from JVM start up to the framework reaching its
+    // beginning start level, -1 if it happened before we were listening
+    public long getFrameworkStarted ()
+    {
+        return (framework_started_ms);
+    }
+
+    // Bundle starts seen after the startup, restarts included
+    public int getRuntimeStarts ()
+    {
+        return (runtime_starts.get ());
+    }
+
+    // Active bundles started before we were listening
+    public int getUnobserved ()
+    {
+        int count = 0;
+
+        for (Bundle bundle: context.getBundles ())
+        {
+            if (bundle.getState () == Bundle.ACTIVE && !activations.containsKey (bundle.getBundleId ()))
+            {
+                count++;
+            }
+        }
+        return (count);
+    }
+
+    // Slowest first, activations still in progress (or failed) last
+    public List<Activation> getActivations ()
+    {
+        List<Activation> list = new ArrayList<> (activations.values ());
+
+        Collections.sort (list, new Comparator<Activation> ()
+        {
+            @Override // Comparator
+            public int compare (Activation a, Activation b)
+            {
+                return (Long.compare (b.getActivationNanos (), a.getActivationNanos ()));
+            }
+        });
+        return (list);
+    }
+
+    public static class Activation
+    {
+        private final long bundle_id;
+        private final String name;
+        private final int start_level;
+        private final long starting_nanos;
+        private long started_nanos;
+        private long started_ms;
+        private volatile boolean started;
+        private volatile int restarts;
+
+        Activation (Bundle bundle, int start_level)
+        {
+            this.bundle_id = bundle.getBundleId ();
+            this.name = bundle.getSymbolicName () + " (" + bundle.getVersion () + ")";
+            this.start_level = start_level;
+            this.starting_nanos = System.nanoTime ();
+        }
+
+        void started ()
+        {
+            // Any nanoTime() is valid, even 0; the flag tells and publishes both
+            started_nanos = System.nanoTime ();
+            started_ms = System.currentTimeMillis () - JVM_START_MS;
+            started = true;
+        }
+
+        void restarted ()
+        {
+            restarts++;
+        }
+
+        public long getBundleId ()
+        {
+            return (bundle_id);
+        }
+
+        public String getName ()
+        {
+            return (name);
+        }
+
+        public int getStartLevel ()
+        {
+            return (start_level);
+        }
+
+        // Starts after this activation, not timed
+        public int getRestarts ()
+        {
+            return (restarts);
+        }
+
+        public boolean isComplete ()
+        {
+            return (started);
+        }
+
+        public long getStartingNanos ()
+        {
+            return (starting_nanos);
+        }
+
+        // Meaningful only once complete
+        public long getStartedNanos ()
+        {
+            return (started? started_nanos: 0);
+        }
+
+        // Activator time, -1 while not STARTED
+        public long getActivationNanos ()
+        {
+            return (started? started_nanos - starting_nanos: -1);
+        }
+
+        // Milliseconds from JVM start up to STARTED, -1 while not STARTED
+        public long getStartedMillis ()
+        {
+            return (started? started_ms: -1);
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+// The AdminD dir usually lives on tmpfs, so every byte there is RAM. New
+// requests are shed while the filesystem usage is above the high-water
+// mark (checked at most once per CHECK_INTERVAL_MS, only when a request
+// is dispatched; running tasks are never stopped), and each request is
+// held to input and output quotas (0 means unlimited). Output quotas are
+// enforced on the task streams themselves, the task gets an IOException.
+// What AdminD writes on err (fail status, expiry stacks, exceptions) is
+// outside the quota.
+//
+public class StorageGuard
+{
+    private final static Logger log = LoggerFactory.getLogger (StorageGuard.class);
+
+    private final static long CHECK_INTERVAL_MS = 1000;
+
+    private final int high_water_percent;
+    private final long input_quota;
+    private final long output_quota;
+
+    private String checked_dir;
+    private long checked_until;
+    private int used_percent;
+    private boolean shedding;
+
+    public StorageGuard (int high_water_percent, long input_quota, long output_quota)
+    {
+        this.high_water_percent = high_water_percent;
+        this.input_quota = input_quota;
+        this.output_quota = output_quota;
+    }
+
+    public long getInputQuota ()
+    {
+        return (input_quota);
+    }
+
+    public long getOutputQuota ()
+    {
+        return (output_quota);
+    }
+
+    public synchronized int getUsedPercent ()
+    {
+        return (used_percent);
+    }
+
+    public synchronized boolean isShedding (String admind_dir)
+    {
+        long now = System.currentTimeMillis ();
+
+        if (admind_dir == null || high_water_percent <= 0 || high_water_percent >= 100)
+        {
+            return (false);
+        }
+
+        if (now < checked_until && admind_dir.equals (checked_dir))
+        {
+            return (shedding);
+        }
+
+        try
+        {
+            FileStore store = Files.getFileStore (Paths.get (admind_dir));
+            long total = store.getTotalSpace ();
+            used_percent = (total == 0)? 0: (int)(100 - (store.getUsableSpace () * 100 / total));
+        }
+        catch (IOException e)
+        {
+            // Can't tell, better serve than shed on a guess
+            used_percent = 0;
+        }
+
+        boolean was_shedding = shedding;
+        shedding = used_percent >= high_water_percent;
+
+        if (shedding != was_shedding)
+        {
+            log.warn ("Storage on {} is {}% used, {} new requests", admind_dir, used_percent,
+                shedding? "shedding": "accepting");
+        }
+        checked_dir = admind_dir;
+        checked_until = now + CHECK_INTERVAL_MS;
+        return (shedding);
+    }
+
+    public String getSheddingMessage ()
+    {
+        return ("Rejected: AdminD storage is " + getUsedPercent () + "% used (high-water mark "
+            + high_water_percent + "%)");
+    }
+
+    public boolean exceedsInputQuota (long request_size)
+    {
+        return (input_quota > 0 && request_size > input_quota);
+    }
+
+    public String getInputQuotaMessage (long request_size)
+    {
+        return ("Rejected: request has " + request_size + " bytes, input quota is " + input_quota + " bytes");
+    }
+
+    public InputStream wrapInput (InputStream in)
+    {
+        return ((input_quota > 0)? new QuotaInputStream (in, input_quota): in);
+    }
+
+    public OutputStream wrapOutput (OutputStream out)
+    {
+        return ((output_quota > 0)? new QuotaOutputStream (out, output_quota): out);
+    }
+
+    static class QuotaInputStream extends FilterInputStream
+    {
+        private long remaining;
+
+        QuotaInputStream (InputStream in, long quota)
+        {
+            super (in);
+            remaining = quota;
+        }
+
+        private void check ()
+            throws IOException
+        {
+            if (remaining < 0)
+            {
+                throw (new IOException ("Input quota exceeded"));
+            }
+        }
+
+        @Override
+        public int read ()
+            throws IOException
+        {
+            int ch = super.read ();
+
+            if (ch != -1)
+            {
+                remaining--;
+                check ();
+            }
+            return (ch);
+        }
+
+        @Override
+        public int read (byte[] b, int off, int len)
+            throws IOException
+        {
+            int count = super.read (b, off, len);
+
+            if (count > 0)
+            {
+                remaining -= count;
+                check ();
+            }
+            return (count);
+        }
+    }
+
+    static class QuotaOutputStream extends FilterOutputStream
+    {
+        private long remaining;
+
+        QuotaOutputStream (OutputStream out, long quota)
+        {
+            super (out);
+            remaining = quota;
+        }
+
+        private void reserve (int count)
+            throws IOException
+        {
+            if (count > remaining)
+            {
+                remaining = -1;
+                throw (new IOException ("Output quota exceeded"));
+            }
+            remaining -= count;
+        }
+
+        @Override
+        public void write (int b)
+            throws IOException
+        {
+            reserve (1);
+            out.write (b);
+        }
+
+        @Override
+        public void write (byte[] b, int off, int len)
+            throws IOException
+        {
+            // FilterOutputStream would go byte by byte
+            reserve (len);
+            out.write (b, off, len);
+        }
+    }
+}
+
+// EOF
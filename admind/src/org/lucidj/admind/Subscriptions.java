@@ -0,0 +1,244 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind;
+
+import org.lucidj.admind.shared.AdmindUtil;
+import org.lucidj.admind.shared.RingFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Subscription requests ('_subscribe' option) keep running and publish
+// records into a fixed-size RingFile next to the request, instead of an
+// ever growing response. Each flush() of the task output is one record.
+// The client heartbeats by touching the request file and unsubscribes by
+// deleting it, either way the task output starts failing and the task
+// thread is interrupted. Subscriptions are not subject to the deadlines,
+// nor counted on the LoadMonitor: they have getActive() of their own.
+//
+public class Subscriptions
+{
+    private final static Logger log = LoggerFactory.getLogger (Subscriptions.class);
+
+    private final TimingWheel timing_wheel;
+    private final long ring_bytes;
+    private final long heartbeat_ms;
+    private final Set<Heartbeat> active = ConcurrentHashMap.newKeySet ();
+
+    public Subscriptions (TimingWheel timing_wheel, long ring_bytes, long heartbeat_ms)
+    {
+        this.timing_wheel = timing_wheel;
+        this.ring_bytes = ring_bytes;
+        this.heartbeat_ms = heartbeat_ms;
+    }
+
+    public static boolean isSubscription (String[] options)
+    {
+        for (String option: options)
+        {
+            if (AdmindUtil.SUBSCRIBE_OPTION.equals (option))
+            {
+                return (true);
+            }
+        }
+        return (false);
+    }
+
+    public int getActive ()
+    {
+        return (active.size ());
+    }
+
+    public RingOutputStream open (File ring_file)
+        throws IOException
+    {
+        return (new RingOutputStream (AdmindUtil.createRingFile (ring_file, ring_bytes)));
+    }
+
+    public Heartbeat watch (TaskThread task_thread, File request_file, RingOutputStream ring_out)
+    {
+        Heartbeat heartbeat = new Heartbeat (task_thread, request_file, ring_out);
+        active.add (heartbeat);
+        heartbeat.schedule ();
+        return (heartbeat);
+    }
+
+    public void close ()
+    {
+        // The heartbeats live on the wheel, without them no feed would ever end
+        if (!active.isEmpty ())
+        {
+            log.info ("Ending {} subscriptions", getActive ());
+        }
+
+        for (Heartbeat heartbeat: active)
+        {
+            heartbeat.end ();
+        }
+    }
+
+    public class Heartbeat implements Runnable
+    {
+        private final TaskThread task_thread;
+        private final File request_file;
+        private final RingOutputStream ring_out;
+        private volatile TimingWheel.Timeout timeout;
+        private volatile boolean cancelled;
+
+        Heartbeat (TaskThread task_thread, File request_file, RingOutputStream ring_out)
+        {
+            this.task_thread = task_thread;
+            this.request_file = request_file;
+            this.ring_out = ring_out;
+        }
+
+        private synchronized void schedule ()
+        {
+            if (!cancelled)
+            {
+                // Twice per heartbeat period, but never faster than the wheel
+                timeout = timing_wheel.schedule (this, Math.max (heartbeat_ms / 2, timing_wheel.getTickMillis ()));
+            }
+        }
+
+        @Override // Runnable
+        public void run ()
+        {
+            // lastModified() is 0 once the request is gone
+            long idle_ms = System.currentTimeMillis () - request_file.lastModified ();
+
+            if (idle_ms <= heartbeat_ms)
+            {
+                schedule ();
+                return;
+            }
+
+            log.info ("Subscription {} {}, stopping", task_thread.getName (),
+                request_file.exists ()? "lost its heartbeat": "was cancelled");
+            end ();
+        }
+
+        void end ()
+        {
+            ring_out.unsubscribe ();
+            task_thread.stopTask ();
+        }
+
+        public synchronized void cancel ()
+        {
+            if (!cancelled)
+            {
+                cancelled = true;
+                active.remove (this);
+
+                if (timeout != null)
+                {
+                    timeout.cancel ();
+                }
+            }
+        }
+    }
+
+    public static class RingOutputStream extends OutputStream
+    {
+        private final RingFile ring;
+        private final ByteArrayOutputStream record = new ByteArrayOutputStream ();
+        private volatile boolean unsubscribed;
+        private boolean closed;
+
+        RingOutputStream (RingFile ring)
+        {
+            this.ring = ring;
+        }
+
+        void unsubscribe ()
+        {
+            unsubscribed = true;
+        }
+
+        private void check ()
+            throws IOException
+        {
+            if (unsubscribed || closed)
+            {
+                throw (new IOException (closed? "Stream closed": "Unsubscribed"));
+            }
+        }
+
+        @Override
+        public void write (int b)
+            throws IOException
+        {
+            check ();
+            record.write (b);
+        }
+
+        @Override
+        public void write (byte[] b, int off, int len)
+            throws IOException
+        {
+            check ();
+            record.write (b, off, len);
+        }
+
+        @Override
+        public void flush ()
+            throws IOException
+        {
+            check ();
+
+            if (record.size () != 0)
+            {
+                // One flush, one record
+                ring.append (record.toByteArray (), 0, record.size ());
+                record.reset ();
+            }
+        }
+
+        @Override
+        public void close ()
+            throws IOException
+        {
+            if (closed)
+            {
+                return;
+            }
+
+            try
+            {
+                if (!unsubscribed)
+                {
+                    flush ();
+                }
+                ring.finish ();
+            }
+            finally
+            {
+                closed = true;
+                ring.close ();
+            }
+        }
+    }
+}
+
+// EOF
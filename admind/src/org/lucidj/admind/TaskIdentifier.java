@@ -0,0 +1,226 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind;
+
+public class TaskIdentifier
+{
+    private final static String[] NO_OPTIONS = new String [0];
+
+    private String source;
+    private int end;
+    private int name_end;
+    private int options_end;
+    private int option_count;
+    private String name;
+    private String[] options;
+    private String unique_id;
+    private String identifier;
+
+    private void reset ()
+    {
+        source = null;
+        name = null;
+        options = NO_OPTIONS;
+        unique_id = null;
+        identifier = null;
+        name_end = -1;
+        options_end = -1;
+        option_count = 0;
+    }
+
+    private static boolean is_word_char (char ch)
+    {
+        return ((ch >= 'a' && ch <= 'z')
+                || (ch >= 'A' && ch <= 'Z')
+                || (ch >= '0' && ch <= '9')
+                || ch == '_');
+    }
+
+    public boolean parse (String identifier)
+    {
+        return (parse (identifier, identifier.length ()));
+    }
+
+    public boolean parse (String source, int end)
+    {
+        // Single pass over source[0..end), the grammar is:
+        //
+        // identifier := name "--" [ options "--" ] unique_id
+        // name       := word-or-dot { word-or-dot | "-" word-or-dot }
+        // options    := option { "-" option }
+        // option     := word-or-dot+
+        // unique_id  := word+
+        //
+        // So a name may have single dashes, options are split on single
+        // dashes, and "--" is always a separator ("---" is never valid).
+        //
+        reset ();
+
+        if (end <= 0 || end > source.length ())
+        {
+            return (false);
+        }
+
+        int separators = 0;
+        int segment_start = 0;
+        int segment_dashes = 0;
+        boolean segment_dots = false;
+
+        for (int i = 0; i < end; i++)
+        {
+            char ch = source.charAt (i);
+
+            if (ch == '-')
+            {
+                if (i == segment_start)
+                {
+                    // Empty name/option or "---"
+                    return (false);
+                }
+
+                if (i + 1 < end && source.charAt (i + 1) == '-')
+                {
+                    if (separators == 2)
+                    {
+                        // Too many segments
+                        return (false);
+                    }
+
+                    if (separators == 0)
+                    {
+                        name_end = i;
+                    }
+                    else
+                    {
+                        options_end = i;
+                        option_count = segment_dashes + 1;
+                    }
+                    separators++;
+                    segment_start = i + 2;
+                    segment_dashes = 0;
+                    segment_dots = false;
+                    i++;
+                    continue;
+                }
+
+                if (separators == 2)
+                {
+                    // No dashes on unique id
+                    return (false);
+                }
+
+                if (i + 1 == end)
+                {
+                    // Trailing dash
+                    return (false);
+                }
+                segment_dashes++;
+                segment_start = (separators == 1)? i + 1: segment_start;
+                continue;
+            }
+
+            if (ch == '.')
+            {
+                if (separators == 2)
+                {
+                    // No dots on unique id
+                    return (false);
+                }
+                segment_dots = true;
+                continue;
+            }
+
+            if (!is_word_char (ch))
+            {
+                return (false);
+            }
+        }
+
+        if (separators == 0 || segment_start >= end)
+        {
+            // Missing or empty unique id
+            return (false);
+        }
+
+        if (separators == 1 && (segment_dashes != 0 || segment_dots))
+        {
+            // The last segment is the unique id, plain word chars only
+            return (false);
+        }
+
+        this.source = source;
+        this.end = end;
+        this.name = source.substring (0, name_end);
+        return (true);
+    }
+
+    public boolean isValid ()
+    {
+        return (source != null);
+    }
+
+    public String getName ()
+    {
+        return (name);
+    }
+
+    public String[] getOptions ()
+    {
+        if (options_end == -1 || options != NO_OPTIONS)
+        {
+            return (options);
+        }
+
+        // Options are only split when someone asks for them
+        String[] option_list = new String [option_count];
+        int start = name_end + 2;
+
+        for (int i = 0; i < option_count; i++)
+        {
+            int option_end = (i == option_count - 1)? options_end: source.indexOf ('-', start);
+            option_list [i] = source.substring (start, option_end);
+            start = option_end + 1;
+        }
+        return (options = option_list);
+    }
+
+    public String getUniqueId ()
+    {
+        if (unique_id == null && source != null)
+        {
+            unique_id = source.substring (((options_end == -1)? name_end: options_end) + 2, end);
+        }
+        return (unique_id);
+    }
+
+    public String getIdentifier ()
+    {
+        if (identifier == null && source != null)
+        {
+            identifier = (end == source.length ())? source: source.substring (0, end);
+        }
+        return (identifier);
+    }
+
+    @Override
+    public String toString ()
+    {
+        return (getIdentifier ());
+    }
+}
+
+// EOF
@@ -0,0 +1,492 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind;
+
+import org.lucidj.api.admind.TaskHandler;
+import org.lucidj.api.admind.TaskProvider;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Character trie holding every TaskProvider.NAME_FILTER, for both TaskProvider
+// and TaskHandler services (a service implementing both is used as handler).
+// Filters are either:
+//
+// 1) Exact names, like 'toupper' or 'a.b.c.uppercase';
+// 2) Wildcards ending with '*', like 'com.acme.db.*' (the whole namespace)
+//    or 'query_*' (anything starting with 'query_'). A lone '*' matches all.
+//
+// The most specific filter wins: an exact match first, then the longest
+// wildcard prefix. Providers sharing the very same filter form a group,
+// sorted by service.ranking (higher first), then by service.id (older
+// first). The providers on the top ranking of a group share the load
+// according to the selection policy:
+//
+// SELECT_RANKING:         always the first one (plain OSGi precedence);
+// SELECT_ROUND_ROBIN:     one after the other;
+// SELECT_LEAST_IN_FLIGHT: the one with fewer tasks running right now.
+//
+// Entries still warming up are skipped while any other entry is ready.
+//
+// Lookups are lock-free and walk the name once, so their cost depends only
+// on the name length. Updates are serialized and copy-on-write.
+//
+public class TaskProviderIndex
+{
+    public final static char WILDCARD = '*';
+
+    public final static int SELECT_RANKING = 0;
+    public final static int SELECT_ROUND_ROBIN = 1;
+    public final static int SELECT_LEAST_IN_FLIGHT = 2;
+
+    private final Node root = new Node ();
+
+    public static boolean isValidFilter (String filter)
+    {
+        int wildcard = filter.indexOf (WILDCARD);
+        return (!filter.isEmpty () && (wildcard == -1 || wildcard == filter.length () - 1));
+    }
+
+    private Node walk (String filter, boolean create)
+    {
+        boolean wildcard = filter.charAt (filter.length () - 1) == WILDCARD;
+        int length = wildcard? filter.length () - 1: filter.length ();
+        Node node = root;
+
+        for (int i = 0; i < length && node != null; i++)
+        {
+            node = create? node.child_or_new (filter.charAt (i)): node.child (filter.charAt (i));
+        }
+        return (node);
+    }
+
+    public Entry add (String filter, Object service, int ranking, long service_id)
+    {
+        return (add (filter, service, ranking, service_id, true));
+    }
+
+    public synchronized Entry add (String filter, Object service, int ranking, long service_id, boolean ready)
+    {
+        if (!isValidFilter (filter))
+        {
+            return (null);
+        }
+
+        Node node = walk (filter, true);
+        Entry entry = new Entry (filter, service, ranking, service_id);
+        entry.ready = ready;
+
+        if (filter.charAt (filter.length () - 1) == WILDCARD)
+        {
+            node.wildcard = node.wildcard.with (entry);
+        }
+        else
+        {
+            node.exact = node.exact.with (entry);
+        }
+        return (entry);
+    }
+
+    public synchronized Entry remove (String filter, Object service)
+    {
+        if (!isValidFilter (filter))
+        {
+            return (null);
+        }
+
+        Node node = walk (filter, false);
+
+        if (node == null)
+        {
+            return (null);
+        }
+
+        // Empty nodes are left behind, filters come and go on the same names
+        if (filter.charAt (filter.length () - 1) == WILDCARD)
+        {
+            Group group = node.wildcard;
+            node.wildcard = group.without (service);
+            return (group.find (service));
+        }
+        else
+        {
+            Group group = node.exact;
+            node.exact = group.without (service);
+            return (group.find (service));
+        }
+    }
+
+    public static int parsePolicy (String policy)
+    {
+        if ("round-robin".equals (policy))
+        {
+            return (SELECT_ROUND_ROBIN);
+        }
+        else if ("least-in-flight".equals (policy))
+        {
+            return (SELECT_LEAST_IN_FLIGHT);
+        }
+        return (SELECT_RANKING);
+    }
+
+    public Group findGroup (String name)
+    {
+        Node node = root;
+        Group best = root.wildcard;
+
+        for (int i = 0, length = name.length (); i < length; i++)
+        {
+            if ((node = node.child (name.charAt (i))) == null)
+            {
+                return (best.isEmpty ()? null: best);
+            }
+
+            if (!node.wildcard.isEmpty ())
+            {
+                // Longest wildcard so far
+                best = node.wildcard;
+            }
+        }
+
+        // Exact match beats any wildcard
+        return (!node.exact.isEmpty ()? node.exact: best.isEmpty ()? null: best);
+    }
+
+    public Entry select (String name, int policy)
+    {
+        Group group = findGroup (name);
+        return ((group == null)? null: group.select (policy));
+    }
+
+    public static class Entry
+    {
+        private final String filter;
+        private final TaskProvider provider;
+        private final TaskHandler handler;
+        private final int ranking;
+        private final long service_id;
+        private final AtomicInteger in_flight = new AtomicInteger ();
+        private volatile boolean ready = true;
+        private volatile long deadline_ms;
+        private volatile Thread warmup;
+
+        Entry (String filter, Object service, int ranking, long service_id)
+        {
+            this.filter = filter;
+            this.handler = (service instanceof TaskHandler)? (TaskHandler)service: null;
+            this.provider = (handler == null)? (TaskProvider)service: null;
+            this.ranking = ranking;
+            this.service_id = service_id;
+        }
+
+        public String getFilter ()
+        {
+            return (filter);
+        }
+
+        public TaskProvider getProvider ()
+        {
+            return (provider);
+        }
+
+        public TaskHandler getHandler ()
+        {
+            return (handler);
+        }
+
+        public Object getService ()
+        {
+            return ((handler != null)? handler: provider);
+        }
+
+        public int getRanking ()
+        {
+            return (ranking);
+        }
+
+        public int getInFlight ()
+        {
+            return (in_flight.get ());
+        }
+
+        public boolean isReady ()
+        {
+            return (ready);
+        }
+
+        public void setReady (boolean ready)
+        {
+            this.ready = ready;
+        }
+
+        public long getDeadline ()
+        {
+            return (deadline_ms);
+        }
+
+        public void setDeadline (long deadline_ms)
+        {
+            this.deadline_ms = deadline_ms;
+        }
+
+        void setWarmup (Thread warmup)
+        {
+            this.warmup = warmup;
+        }
+
+        public void cancelWarmup ()
+        {
+            Thread thread = warmup;
+
+            // The provider is going away, don't keep exercising it
+            if (thread != null)
+            {
+                thread.interrupt ();
+                warmup = null;
+            }
+        }
+
+        public void acquire ()
+        {
+            in_flight.incrementAndGet ();
+        }
+
+        public void release ()
+        {
+            in_flight.decrementAndGet ();
+        }
+
+        boolean precedes (Entry other)
+        {
+            return (ranking != other.ranking? ranking > other.ranking: service_id < other.service_id);
+        }
+    }
+
+    public static class Group
+    {
+        private final static Group EMPTY = new Group (new Entry [0]);
+
+        private final Entry[] entries;
+        private final int top_ranked;
+        private final AtomicInteger next = new AtomicInteger ();
+
+        private Group (Entry[] entries)
+        {
+            this.entries = entries;
+
+            // Only the entries sharing the top ranking get load
+            int count = Math.min (entries.length, 1);
+
+            while (count < entries.length && entries [count].ranking == entries [0].ranking)
+            {
+                count++;
+            }
+            this.top_ranked = count;
+        }
+
+        public boolean isEmpty ()
+        {
+            return (entries.length == 0);
+        }
+
+        public int size ()
+        {
+            return (entries.length);
+        }
+
+        public Entry get (int index)
+        {
+            return (entries [index]);
+        }
+
+        public Entry first ()
+        {
+            return (entries [0]);
+        }
+
+        public boolean isReady ()
+        {
+            for (Entry entry: entries)
+            {
+                if (entry.ready)
+                {
+                    return (true);
+                }
+            }
+            return (false);
+        }
+
+        private Entry first_ready ()
+        {
+            for (Entry entry: entries)
+            {
+                if (entry.ready)
+                {
+                    return (entry);
+                }
+            }
+
+            // Nobody is ready, better late than never
+            return (entries [0]);
+        }
+
+        public Entry select (int policy)
+        {
+            if (top_ranked == 1 || policy == SELECT_RANKING)
+            {
+                return (entries [0].ready? entries [0]: first_ready ());
+            }
+
+            if (policy == SELECT_ROUND_ROBIN)
+            {
+                int start = next.getAndIncrement () & Integer.MAX_VALUE;
+
+                for (int i = 0; i < top_ranked; i++)
+                {
+                    Entry entry = entries [(start + i) % top_ranked];
+
+                    if (entry.ready)
+                    {
+                        return (entry);
+                    }
+                }
+                return (first_ready ());
+            }
+
+            // Least in flight, ties go to the first ones
+            Entry best = null;
+            int best_in_flight = Integer.MAX_VALUE;
+
+            for (int i = 0; i < top_ranked && best_in_flight > 0; i++)
+            {
+                int in_flight = entries [i].in_flight.get ();
+
+                if (entries [i].ready && in_flight < best_in_flight)
+                {
+                    best = entries [i];
+                    best_in_flight = in_flight;
+                }
+            }
+            return ((best != null)? best: first_ready ());
+        }
+
+        Group with (Entry entry)
+        {
+            // Insertion sort, the list is kept by precedence
+            Entry[] new_entries = new Entry [entries.length + 1];
+            int pos = 0;
+
+            while (pos < entries.length && entries [pos].precedes (entry))
+            {
+                new_entries [pos] = entries [pos];
+                pos++;
+            }
+            new_entries [pos] = entry;
+            System.arraycopy (entries, pos, new_entries, pos + 1, entries.length - pos);
+            return (new Group (new_entries));
+        }
+
+        Entry find (Object service)
+        {
+            for (Entry entry: entries)
+            {
+                if (entry.getService () == service)
+                {
+                    return (entry);
+                }
+            }
+            return (null);
+        }
+
+        Group without (Object service)
+        {
+            for (int pos = 0; pos < entries.length; pos++)
+            {
+                if (entries [pos].getService () == service)
+                {
+                    if (entries.length == 1)
+                    {
+                        return (EMPTY);
+                    }
+
+                    Entry[] new_entries = new Entry [entries.length - 1];
+                    System.arraycopy (entries, 0, new_entries, 0, pos);
+                    System.arraycopy (entries, pos + 1, new_entries, pos, entries.length - pos - 1);
+                    return (new Group (new_entries));
+                }
+            }
+            return (this);
+        }
+    }
+
+    static class Node
+    {
+        // Sorted keys, replaced as a whole together with the children
+        private volatile Edges edges = Edges.EMPTY;
+        private volatile Group exact = Group.EMPTY;
+        private volatile Group wildcard = Group.EMPTY;
+
+        Node child (char ch)
+        {
+            Edges current = edges;
+            int pos = Arrays.binarySearch (current.keys, ch);
+            return ((pos < 0)? null: current.nodes [pos]);
+        }
+
+        Node child_or_new (char ch)
+        {
+            Edges current = edges;
+            int pos = Arrays.binarySearch (current.keys, ch);
+
+            if (pos >= 0)
+            {
+                return (current.nodes [pos]);
+            }
+
+            int insert = -pos - 1;
+            int length = current.keys.length;
+            char[] keys = new char [length + 1];
+            Node[] nodes = new Node [length + 1];
+            Node node = new Node ();
+
+            System.arraycopy (current.keys, 0, keys, 0, insert);
+            System.arraycopy (current.nodes, 0, nodes, 0, insert);
+            keys [insert] = ch;
+            nodes [insert] = node;
+            System.arraycopy (current.keys, insert, keys, insert + 1, length - insert);
+            System.arraycopy (current.nodes, insert, nodes, insert + 1, length - insert);
+            edges = new Edges (keys, nodes);
+            return (node);
+        }
+    }
+
+    static class Edges
+    {
+        private final static Edges EMPTY = new Edges (new char [0], new Node [0]);
+
+        private final char[] keys;
+        private final Node[] nodes;
+
+        Edges (char[] keys, Node[] nodes)
+        {
+            this.keys = keys;
+            this.nodes = nodes;
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Wall time, CPU time and allocated bytes of every task execution,
+// aggregated per task name. Wildcard providers accept any name, so at
+// most MAX_NAMES are tracked; the rest is aggregated as OTHER_NAME.
+//
+public class TaskStats
+{
+    public final static String OTHER_NAME = "[other]";
+
+    private final static int MAX_NAMES = 1024;
+
+    private final static ThreadMXBean thread_mx = ManagementFactory.getThreadMXBean ();
+    private final static com.sun.management.ThreadMXBean sun_thread_mx =
+        (thread_mx instanceof com.sun.management.ThreadMXBean)? (com.sun.management.ThreadMXBean)thread_mx: null;
+
+    private final Map<String, Totals> totals = new ConcurrentHashMap<> ();
+
+    private static boolean cpu_time_enabled ()
+    {
+        return (thread_mx.isCurrentThreadCpuTimeSupported () && thread_mx.isThreadCpuTimeEnabled ());
+    }
+
+    private static boolean allocated_enabled ()
+    {
+        return (sun_thread_mx != null
+                && sun_thread_mx.isThreadAllocatedMemorySupported ()
+                && sun_thread_mx.isThreadAllocatedMemoryEnabled ());
+    }
+
+    public static Execution begin ()
+    {
+        // Must be called from the thread running the task
+        return (new Execution ());
+    }
+
+    public void record (String name, Execution execution, boolean failed)
+    {
+        Totals task_totals = totals.get (name);
+
+        if (task_totals == null)
+        {
+            if (totals.size () >= MAX_NAMES)
+            {
+                name = OTHER_NAME;
+            }
+            Totals new_totals = new Totals ();
+            task_totals = totals.putIfAbsent (name, new_totals);
+            task_totals = (task_totals == null)? new_totals: task_totals;
+        }
+        task_totals.add (execution, failed);
+    }
+
+    public Map<String, Totals> getTotals ()
+    {
+        return (new TreeMap<> (totals));
+    }
+
+    public static class Execution
+    {
+        private final long start_wall = System.nanoTime ();
+        private final long start_cpu = cpu_time_enabled ()? thread_mx.getCurrentThreadCpuTime (): -1;
+        private final long start_allocated = allocated_enabled ()?
+            sun_thread_mx.getThreadAllocatedBytes (Thread.currentThread ().getId ()): -1;
+        private long wall_ns = -1;
+        private long cpu_ns = -1;
+        private long allocated_bytes = -1;
+
+        public Execution end ()
+        {
+            // Figures not available on this JVM stay at -1
+            wall_ns = System.nanoTime () - start_wall;
+
+            if (start_cpu != -1)
+            {
+                cpu_ns = thread_mx.getCurrentThreadCpuTime () - start_cpu;
+            }
+
+            if (start_allocated != -1)
+            {
+                allocated_bytes =
+                    sun_thread_mx.getThreadAllocatedBytes (Thread.currentThread ().getId ()) - start_allocated;
+            }
+            return (this);
+        }
+
+        public long getWallNanos ()
+        {
+            return (wall_ns);
+        }
+
+        public long getCpuNanos ()
+        {
+            return (cpu_ns);
+        }
+
+        public long getAllocatedBytes ()
+        {
+            return (allocated_bytes);
+        }
+
+        @Override
+        public String toString ()
+        {
+            return ("wall_us=" + (wall_ns / 1000)
+                + " cpu_us=" + ((cpu_ns == -1)? -1: cpu_ns / 1000)
+                + " allocated_bytes=" + allocated_bytes);
+        }
+    }
+
+    public static class Totals
+    {
+        private final LongAdder executions = new LongAdder ();
+        private final LongAdder failures = new LongAdder ();
+        private final LongAdder wall_ns = new LongAdder ();
+        private final LongAdder cpu_ns = new LongAdder ();
+        private final LongAdder allocated_bytes = new LongAdder ();
+        private final AtomicLong max_wall_ns = new AtomicLong ();
+
+        void add (Execution execution, boolean failed)
+        {
+            executions.increment ();
+
+            if (failed)
+            {
+                failures.increment ();
+            }
+            wall_ns.add (execution.wall_ns);
+            cpu_ns.add (Math.max (execution.cpu_ns, 0));
+            allocated_bytes.add (Math.max (execution.allocated_bytes, 0));
+
+            for (long max; execution.wall_ns > (max = max_wall_ns.get ())
+                 && !max_wall_ns.compareAndSet (max, execution.wall_ns););
+        }
+
+        public long getExecutions ()
+        {
+            return (executions.sum ());
+        }
+
+        public long getFailures ()
+        {
+            return (failures.sum ());
+        }
+
+        public long getWallNanos ()
+        {
+            return (wall_ns.sum ());
+        }
+
+        public long getMaxWallNanos ()
+        {
+            return (max_wall_ns.get ());
+        }
+
+        public long getCpuNanos ()
+        {
+            return (cpu_ns.sum ());
+        }
+
+        public long getAllocatedBytes ()
+        {
+            return (allocated_bytes.sum ());
+        }
+
+        @Override
+        public String toString ()
+        {
+            long count = Math.max (getExecutions (), 1);
+
+            return ("executions=" + getExecutions ()
+                + " failures=" + getFailures ()
+                + " wall_us=" + getWallNanos () / 1000
+                + " avg_wall_us=" + getWallNanos () / count / 1000
+                + " max_wall_us=" + getMaxWallNanos () / 1000
+                + " cpu_us=" + getCpuNanos () / 1000
+                + " avg_cpu_us=" + getCpuNanos () / count / 1000
+                + " allocated_bytes=" + getAllocatedBytes ()
+                + " avg_allocated_bytes=" + getAllocatedBytes () / count);
+        }
+    }
+}
+
+// EOF
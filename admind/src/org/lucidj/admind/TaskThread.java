@@ -17,46 +17,139 @@
 package org.lucidj.admind;
 
 import org.lucidj.admind.shared.AdmindUtil;
+import org.lucidj.admind.shared.TransactionFile;
 import org.lucidj.api.admind.Task;
-import org.lucidj.api.admind.TaskProvider;
+import org.lucidj.api.admind.TaskHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.util.Arrays;
 
-public class TaskThread extends Thread
+// A request being served. Classic Task providers and subscription feeds
+// run on a thread of their own, TaskHandler requests run on the HandlerPool
+// and fall back to their own thread only when the pool is busy.
+//
+public class TaskThread implements Runnable
 {
     private final static Logger log = LoggerFactory.getLogger (TaskThread.class);
 
     private String identifier;
+    private ThreadGroup group;
+    private String task_name;
+    private String[] task_options;
     private Task task;
+    private TaskHandler handler;
     private InputStream in;
     private OutputStream out;
     private OutputStream err;
+    private OutputStream server_err;
     private File temp_file;
     private File err_file;
+    private TransactionFile transaction;
+    private ByteArrayOutputStream err_buffer;
+    private boolean failed;
+    private TaskProviderIndex.Entry provider_entry;
+    private LoadMonitor load_monitor;
+    private long queued_nanos;
+    private TaskStats task_stats;
+    private boolean stats_trailer;
+    private boolean probe;
+    private long request_deadline_ms;
+    private Watchdog watchdog;
+    private volatile boolean expired;
+    private final Object task_lock = new Object ();
+    private boolean task_done;
+    private Subscriptions subscriptions;
+    private Subscriptions.RingOutputStream ring_out;
+    private File request_file;
+    private Completion completion;
+    private HandlerPool handler_pool;
+    private Thread runner;
+    private boolean stopped;
 
-    private TaskThread (String identifier, ThreadGroup group, Task task,
-                        File temp_file, File err_file,
+    private TaskThread (String identifier, ThreadGroup group, TaskProviderIndex.Entry provider_entry,
+                        TaskIdentifier task_id, File temp_file, File err_file,
                         InputStream in, OutputStream out, OutputStream err)
+        throws Exception
     {
-        super (group, identifier);
         this.identifier = identifier;
-        this.task = task;
+        this.group = group;
+        this.provider_entry = provider_entry;
+        this.task_name = task_id.getName ();
+        this.task_options = strip_admind_options (task_id.getOptions ());
+        this.handler = provider_entry.getHandler ();
+
+        if (handler == null)
+        {
+            // Classic provider, a new task for each request
+            this.task = provider_entry.getProvider ().createTask (in, out, err, task_name, task_options);
+        }
+
         this.temp_file = temp_file;
         this.err_file = err_file;
         this.in = in;
         this.out = out;
         this.err = err;
+        this.server_err = err;
 
         log.debug ("New TaskThread (identifier={} group={} task={} in={} out={} err={}",
-            identifier, group, task, in, out, err);
+            identifier, group, (handler != null)? handler: task, in, out, err);
+    }
+
+    private boolean admind_option (String option)
+    {
+        if (AdmindUtil.STATS_OPTION.equals (option))
+        {
+            stats_trailer = true;
+            return (true);
+        }
+
+        if (AdmindUtil.SUBSCRIBE_OPTION.equals (option))
+        {
+            // Already taken care of by newInstance()
+            return (true);
+        }
+
+        if (AdmindUtil.PROBE_OPTION.equals (option))
+        {
+            probe = true;
+            return (true);
+        }
+
+        if (option.startsWith (AdmindUtil.DEADLINE_OPTION)
+            && option.substring (AdmindUtil.DEADLINE_OPTION.length ()).matches ("\\d{1,18}"))
+        {
+            request_deadline_ms = Long.parseLong (option.substring (AdmindUtil.DEADLINE_OPTION.length ()));
+            return (true);
+        }
+        return (false);
+    }
+
+    private String[] strip_admind_options (String[] options)
+    {
+        // Our options are for us, the provider never sees them
+        String[] new_options = new String [options.length];
+        int count = 0;
+
+        for (String option: options)
+        {
+            if (!admind_option (option))
+            {
+                new_options [count++] = option;
+            }
+        }
+        return ((count == options.length)? options: Arrays.copyOf (new_options, count));
     }
 
-    public static TaskThread newInstance (ThreadGroup group, TaskProvider provider, File request_file)
+    public static TaskThread newInstance (ThreadGroup group, TaskProviderIndex.Entry provider_entry,
+                                          TaskIdentifier task_id, File request_file, StorageGuard guard,
+                                          Subscriptions subscriptions)
     {
-        String identifier = request_file.getName ().substring (0, request_file.getName ().lastIndexOf ('.'));
+        String identifier = task_id.getIdentifier ();
         String request = request_file.getAbsolutePath ();
         File response_file = AdmindUtil.responseFile (request);
         File err_file = AdmindUtil.statusFile (request);
@@ -64,24 +157,29 @@ public class TaskThread extends Thread
         InputStream task_in = null;
         OutputStream task_out = null;
         OutputStream task_err = null;
+        Subscriptions.RingOutputStream ring_out = null;
 
-        log.debug ("TaskThread.newInstance: request={} (size={})", request_file, request_file.length ());
+        log.debug ("TaskThread.newInstance: request={}", request_file);
 
         try
         {
-            if (!response_file.createNewFile ())
+            // Both files are created already with proper permissions, one open() each
+            task_out = AdmindUtil.newOutputStream (response_file);
+            task_err = AdmindUtil.newOutputStream (temp_file);
+            task_in = Files.newInputStream (request_file.toPath ());
+
+            if (subscriptions != null && Subscriptions.isSubscription (task_id.getOptions ()))
             {
-                // The task was already created
-                return (null);
+                // The empty response stays as the running mark, records go to the ring
+                task_out.close ();
+                task_out = ring_out = subscriptions.open (AdmindUtil.ringFile (request));
             }
-
-            // Create and/or set proper permissions
-            AdmindUtil.createAndFixPermissions (response_file);
-            AdmindUtil.createAndFixPermissions (temp_file);
-
-            task_in = Files.newInputStream (request_file.toPath ());
-            task_out = Files.newOutputStream (response_file.toPath ());
-            task_err = Files.newOutputStream (temp_file.toPath ());
+        }
+        catch (FileAlreadyExistsException e)
+        {
+            // The task was already created
+            closeQuietly (task_out);
+            return (null);
         }
         catch (IOException e)
         {
@@ -92,20 +190,42 @@ public class TaskThread extends Thread
             return (null);
         }
 
+        // Our own diagnostics bypass the quota, they must reach the client
+        OutputStream server_err = task_err;
+
+        if (guard != null)
+        {
+            // Quotas are enforced on the task streams, closing them closes the files.
+            // The ring is bounded by itself, a feed has no output quota.
+            task_in = guard.wrapInput (task_in);
+            task_out = (ring_out != null)? ring_out: guard.wrapOutput (task_out);
+            task_err = guard.wrapOutput (task_err);
+        }
+
+        // Counted as in flight from here until run() is done
+        provider_entry.acquire ();
+
         try
         {
             // We have all set up to create the serving task
-            Task task = provider.createTask (task_in, task_out, task_err,
-                getTaskName (identifier), getTaskOptions (identifier));
-            TaskThread new_task = new TaskThread (identifier, group, task,
+            TaskThread new_task = new TaskThread (identifier, group, provider_entry, task_id,
                 temp_file, err_file, task_in, task_out, task_err);
-            new_task.setDaemon (true);
+            new_task.server_err = server_err;
+
+            if (ring_out != null)
+            {
+                new_task.subscriptions = subscriptions;
+                new_task.ring_out = ring_out;
+                new_task.request_file = request_file;
+            }
             return (new_task);
         }
         catch (Throwable t)
         {
-            log.warn ("{} for {} throwed {}", provider.getClass ().getSimpleName (), identifier, t.toString ());
-            t.printStackTrace (new PrintStream (task_err));
+            log.warn ("{} for {} throwed {}",
+                provider_entry.getService ().getClass ().getSimpleName (), identifier, t.toString ());
+            provider_entry.release ();
+            t.printStackTrace (new PrintStream (server_err));
             closeQuietly (task_in);
             closeQuietly (task_out);
             closeQuietly (task_err);
@@ -113,6 +233,210 @@ public class TaskThread extends Thread
         }
     }
 
+    public static TaskThread newInstance (ThreadGroup group, TaskProviderIndex.Entry provider_entry,
+                                          TaskIdentifier task_id, File transaction_file, TransactionFile transaction,
+                                          StorageGuard guard)
+    {
+        // The transaction was already claimed, we own it from now on
+        String identifier = task_id.getIdentifier ();
+        InputStream task_in = transaction.getRequestStream ();
+        OutputStream task_out = transaction.getResponseStream ();
+        ByteArrayOutputStream task_err = new ByteArrayOutputStream ();
+
+        if (guard != null)
+        {
+            task_in = guard.wrapInput (task_in);
+            task_out = guard.wrapOutput (task_out);
+        }
+
+        log.debug ("TaskThread.newInstance: transaction={}", transaction_file);
+
+        // Counted as in flight from here until run() is done
+        provider_entry.acquire ();
+
+        try
+        {
+            TaskThread new_task = new TaskThread (identifier, group, provider_entry, task_id, null, null,
+                task_in, task_out, (guard != null)? guard.wrapOutput (task_err): task_err);
+            new_task.transaction = transaction;
+            new_task.err_buffer = task_err;
+            new_task.server_err = task_err;
+            return (new_task);
+        }
+        catch (Throwable t)
+        {
+            log.warn ("{} for {} throwed {}",
+                provider_entry.getService ().getClass ().getSimpleName (), identifier, t.toString ());
+            provider_entry.release ();
+            t.printStackTrace (new PrintStream (task_err));
+            closeQuietly (task_out);
+            completeTransaction (transaction, TransactionFile.STATUS_FAILED, task_err.toByteArray ());
+            return (null);
+        }
+    }
+
+    public static TaskThread newInstance (ThreadGroup group, TaskProviderIndex.Entry provider_entry,
+                                          TaskIdentifier task_id, byte[] request, OutputStream out, OutputStream err)
+    {
+        // Internal request, no files at all (see Scheduler)
+        String identifier = task_id.getIdentifier ();
+        InputStream task_in = new ByteArrayInputStream (request);
+
+        provider_entry.acquire ();
+
+        try
+        {
+            return (new TaskThread (identifier, group, provider_entry, task_id, null, null, task_in, out, err));
+        }
+        catch (Throwable t)
+        {
+            log.warn ("{} for {} threw {}",
+                provider_entry.getService ().getClass ().getSimpleName (), identifier, t.toString ());
+            provider_entry.release ();
+            t.printStackTrace (new PrintStream (err));
+            return (null);
+        }
+    }
+
+    public interface Completion
+    {
+        // Runs on the task thread, once everything is closed
+        void completed (boolean failed);
+    }
+
+    public void setCompletion (Completion completion)
+    {
+        this.completion = completion;
+    }
+
+    public void setLoadMonitor (LoadMonitor load_monitor)
+    {
+        setLoadMonitor (load_monitor, false);
+    }
+
+    public void setLoadMonitor (LoadMonitor load_monitor, boolean already_queued)
+    {
+        // Accounted as queued until run() starts, claimed requests already are
+        this.load_monitor = load_monitor;
+        queued_nanos = System.nanoTime ();
+
+        if (!already_queued)
+        {
+            load_monitor.taskQueued ();
+        }
+    }
+
+    public void setTaskStats (TaskStats task_stats)
+    {
+        this.task_stats = task_stats;
+    }
+
+    public void setWatchdog (Watchdog watchdog)
+    {
+        this.watchdog = watchdog;
+    }
+
+    void stopTask ()
+    {
+        // Only the task code gets interrupted. Once it returned we are writing
+        // diagnostics and completing the request on interruptible channels, an
+        // interrupt would close them and leave the request never completed.
+        // Not started yet, run_task() interrupts itself before the task runs.
+        synchronized (task_lock)
+        {
+            stopped = true;
+
+            if (!task_done && runner != null)
+            {
+                runner.interrupt ();
+            }
+        }
+    }
+
+    void expire ()
+    {
+        // Called from the timing wheel, the task may still be writing
+        StackTraceElement[] stack;
+
+        synchronized (task_lock)
+        {
+            if (task_done)
+            {
+                // Made it just in time
+                return;
+            }
+            expired = true;
+
+            // Taken under the lock, a pool worker can't move on to another request meanwhile
+            stack = (runner != null)? runner.getStackTrace (): new StackTraceElement [0];
+        }
+
+        try
+        {
+            StringBuilder sb = new StringBuilder ("Task deadline exceeded, stack at expiry:\n");
+
+            for (StackTraceElement element: stack)
+            {
+                sb.append ("\tat ").append (element).append ('\n');
+            }
+
+            synchronized (server_err)
+            {
+                server_err.write (sb.toString ().getBytes ());
+                server_err.flush ();
+            }
+        }
+        catch (IOException ignore) {};
+
+        // Code that ignores interrupts keeps running, it's only marked failed
+        stopTask ();
+    }
+
+    public static void completeTransaction (TransactionFile transaction, int status, byte[] error)
+    {
+        try
+        {
+            try
+            {
+                transaction.complete (status, error);
+            }
+            catch (ClosedChannelException e)
+            {
+                // Interrupted in the middle of a response write, the file is still there
+                transaction.reopen ();
+                transaction.complete (status, error);
+            }
+        }
+        catch (IOException e)
+        {
+            log.warn ("Exception completing transaction: {}", e.toString ());
+        }
+        closeQuietly (transaction);
+    }
+
+    public void setHandlerPool (HandlerPool handler_pool)
+    {
+        this.handler_pool = handler_pool;
+    }
+
+    public String getName ()
+    {
+        return (identifier);
+    }
+
+    public void start ()
+    {
+        // A feed lives for hours, it would hold a pool worker all along
+        if (handler != null && ring_out == null && handler_pool != null && handler_pool.execute (this))
+        {
+            return;
+        }
+
+        Thread thread = new Thread (group, this, identifier);
+        thread.setDaemon (true);
+        thread.start ();
+    }
+
     public static boolean validTaskIdentifier (String identifier)
     {
         // Valid patterns are:
@@ -128,45 +452,159 @@ public class TaskThread extends Thread
         //    com.zeus.create--mesons--a1b2c3d4
         //    _odd-name-with-dashes--xml-ordered-utf8--1bf89c33
         //
-        return (identifier.contains ("--"));  // Dummy test
+        // See TaskIdentifier for the full grammar
+        //
+        return (new TaskIdentifier ().parse (identifier));
     }
 
     public static String getTaskName (String identifier)
     {
-        return (validTaskIdentifier (identifier)? identifier.substring (0, identifier.indexOf ("--")): null);
+        TaskIdentifier task_id = new TaskIdentifier ();
+        return (task_id.parse (identifier)? task_id.getName (): null);
     }
 
     public static String[] getTaskOptions (String identifier)
     {
-        return (new String [0]);
+        TaskIdentifier task_id = new TaskIdentifier ();
+        return (task_id.parse (identifier)? task_id.getOptions (): new String [0]);
     }
 
-    @Override // Thread
+    private boolean run_task ()
+        throws Exception
+    {
+        HandlerPool.Context context = (handler != null)? HandlerPool.getContext (): null;
+
+        synchronized (task_lock)
+        {
+            runner = Thread.currentThread ();
+
+            if (stopped)
+            {
+                // Stopped or expired while still waiting to run
+                runner.interrupt ();
+            }
+        }
+
+        try
+        {
+            return ((context != null)?
+                handler.handle (context.set (task_name, task_options, in, out, err)): task.run ());
+        }
+        finally
+        {
+            synchronized (task_lock)
+            {
+                // No more interrupts from now on, and drop any still pending,
+                // a pool worker must not carry it into the next request
+                task_done = true;
+                Thread.interrupted ();
+            }
+
+            if (context != null)
+            {
+                context.clear ();
+            }
+        }
+    }
+
+    @Override // Runnable
     public void run ()
     {
+        if (load_monitor != null && ring_out != null)
+        {
+            // A feed lives for hours, Subscriptions counts it instead of the load
+            load_monitor.taskUnqueued ();
+        }
+        else if (load_monitor != null)
+        {
+            load_monitor.taskStarted ();
+        }
+
+        TaskStats.Execution execution = TaskStats.begin ();
+        TimingWheel.Timeout deadline = (watchdog == null || ring_out != null)? null:
+            watchdog.watch (this, request_deadline_ms, provider_entry.getDeadline ());
+        Subscriptions.Heartbeat heartbeat = (ring_out == null)? null:
+            subscriptions.watch (this, request_file, ring_out);
+
         try
         {
-            if (!task.run ())
+            if (!run_task ())
             {
-                err.write ("Task returned fail status\n".getBytes ());
+                failed = true;
+                server_err.write ("Task returned fail status\n".getBytes ());
             }
         }
         catch (Throwable t)
         {
+            failed = true;
             log.warn ("Task {} throwed {}", identifier, t.toString ());
-            t.printStackTrace (new PrintStream (err));
+            t.printStackTrace (new PrintStream (server_err));
         }
         finally
         {
+            if (deadline != null)
+            {
+                deadline.cancel ();
+            }
+
+            if (heartbeat != null)
+            {
+                heartbeat.cancel ();
+            }
+
+            // Whatever the task said, an expired task failed
+            failed |= expired;
+            provider_entry.release ();
+            execution.end ();
+
+            if (task_stats != null && !probe && ring_out == null)
+            {
+                task_stats.record (task_name, execution, failed);
+            }
+
+            if (stats_trailer)
+            {
+                try
+                {
+                    // Last line of the response, see AdmindUtil.getStatsTrailer()
+                    out.write ((AdmindUtil.STATS_TRAILER + execution + "\n").getBytes ());
+                }
+                catch (IOException ignore) {};
+            }
+
+            if (load_monitor != null && probe)
+            {
+                // The probe times its own round trip, it stays out of the task latency
+                load_monitor.probeFinished ();
+            }
+            else if (load_monitor != null && ring_out == null)
+            {
+                // The latency includes the queueing, as seen by clients
+                load_monitor.taskFinished (queued_nanos);
+            }
             closeQuietly (in);
             closeQuietly (out);
             closeQuietly (err);
 
-            // Only after all finished rename .tmp file to valid
-            // status file with .err extension. If we got no errors
-            // then err file will be empty (0 length).
-            temp_file.renameTo (err_file);
-            AdmindUtil.createAndFixPermissions (err_file);
+            if (transaction != null)
+            {
+                // Single-file transaction: status and errors go into the header
+                completeTransaction (transaction,
+                    failed? TransactionFile.STATUS_FAILED: TransactionFile.STATUS_OK, err_buffer.toByteArray ());
+            }
+            else if (temp_file != null)
+            {
+                // Only after all finished rename .tmp file to valid
+                // status file with .err extension. If we got no errors
+                // then err file will be empty (0 length). The rename
+                // keeps the owner-only permissions set on creation.
+                temp_file.renameTo (err_file);
+            }
+
+            if (completion != null)
+            {
+                completion.completed (failed);
+            }
         }
     }
 
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TimingWheel
+{
+    private final static Logger log = LoggerFactory.getLogger (TimingWheel.class);
+
+    private final long tick_ms;
+    private final Timeout[] wheel;
+    private final int mask;
+
+    private int cursor;
+    private int pending;
+    private Thread tick_thread;
+
+    public TimingWheel (long tick_ms, int wheel_size)
+    {
+        // Round the wheel size up to a power of 2, so the slot is just a mask away
+        int size = Integer.highestOneBit (Math.max (wheel_size, 2) - 1) << 1;
+
+        this.tick_ms = Math.max (tick_ms, 1);
+        this.wheel = new Timeout [size];
+        this.mask = size - 1;
+    }
+
+    public long getTickMillis ()
+    {
+        return (tick_ms);
+    }
+
+    public synchronized int getPending ()
+    {
+        return (pending);
+    }
+
+    public synchronized Timeout schedule (Runnable action, long delay_ms)
+    {
+        // Anything below one tick fires on the next tick
+        long ticks = Math.max ((delay_ms + tick_ms - 1) / tick_ms, 1);
+        Timeout timeout = new Timeout (action);
+
+        // The entry lives on the slot it expires and goes around the wheel
+        // 'rounds' times before firing. Only the slot under the cursor is
+        // visited on every tick, so the cost is bound to the slot population.
+        timeout.slot = (int)((cursor + ticks) & mask);
+        timeout.rounds = (ticks - 1) / wheel.length;
+        link (timeout);
+        return (timeout);
+    }
+
+    private void link (Timeout timeout)
+    {
+        Timeout head = wheel [timeout.slot];
+
+        timeout.prev = null;
+        timeout.next = head;
+
+        if (head != null)
+        {
+            head.prev = timeout;
+        }
+        wheel [timeout.slot] = timeout;
+        pending++;
+    }
+
+    private void unlink (Timeout timeout)
+    {
+        if (timeout.prev != null)
+        {
+            timeout.prev.next = timeout.next;
+        }
+        else
+        {
+            wheel [timeout.slot] = timeout.next;
+        }
+
+        if (timeout.next != null)
+        {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = timeout.next = null;
+        pending--;
+    }
+
+    private synchronized List<Timeout> advance ()
+    {
+        List<Timeout> expired = null;
+
+        cursor = (cursor + 1) & mask;
+
+        for (Timeout timeout = wheel [cursor], next; timeout != null; timeout = next)
+        {
+            next = timeout.next;
+
+            if (timeout.rounds > 0)
+            {
+                timeout.rounds--;
+                continue;
+            }
+
+            unlink (timeout);
+            timeout.state = Timeout.EXPIRED;
+
+            if (expired == null)
+            {
+                expired = new ArrayList<> ();
+            }
+            expired.add (timeout);
+        }
+        return (expired);
+    }
+
+    private void run_wheel ()
+    {
+        long next_tick = System.nanoTime ();
+
+        while (!Thread.currentThread ().isInterrupted ())
+        {
+            next_tick += tick_ms * 1000000L;
+
+            try
+            {
+                long sleep_ms = (next_tick - System.nanoTime ()) / 1000000L;
+
+                if (sleep_ms > 0)
+                {
+                    Thread.sleep (sleep_ms);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                break;
+            }
+
+            // The actions are run outside the lock, so they may freely reschedule
+            List<Timeout> expired = advance ();
+
+            if (expired != null)
+            {
+                for (Timeout timeout: expired)
+                {
+                    try
+                    {
+                        timeout.action.run ();
+                    }
+                    catch (Throwable t)
+                    {
+                        log.warn ("Timeout action {} throwed {}", timeout.action, t.toString ());
+                    }
+                }
+            }
+        }
+    }
+
+    public synchronized void start (ThreadGroup group, String name)
+    {
+        if (tick_thread != null)
+        {
+            // Already running
+            return;
+        }
+
+        tick_thread = new Thread (group, new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                run_wheel ();
+            }
+        }, name);
+        tick_thread.setDaemon (true);
+        tick_thread.start ();
+    }
+
+    public void stop ()
+    {
+        Thread thread;
+
+        synchronized (this)
+        {
+            thread = tick_thread;
+            tick_thread = null;
+
+            // Drop everything still pending
+            for (int slot = 0; slot < wheel.length; slot++)
+            {
+                for (Timeout timeout = wheel [slot]; timeout != null; timeout = timeout.next)
+                {
+                    timeout.state = Timeout.CANCELLED;
+                }
+                wheel [slot] = null;
+            }
+            pending = 0;
+        }
+
+        if (thread != null)
+        {
+            thread.interrupt ();
+
+            try
+            {
+                thread.join (1000);
+            }
+            catch (InterruptedException ignore) {};
+        }
+    }
+
+    public class Timeout
+    {
+        private final static int WAITING = 0;
+        private final static int EXPIRED = 1;
+        private final static int CANCELLED = 2;
+
+        private final Runnable action;
+        private int state = WAITING;
+        private int slot;
+        private long rounds;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout (Runnable action)
+        {
+            this.action = action;
+        }
+
+        public boolean cancel ()
+        {
+            synchronized (TimingWheel.this)
+            {
+                if (state != WAITING)
+                {
+                    return (false);
+                }
+                unlink (this);
+                state = CANCELLED;
+                return (true);
+            }
+        }
+
+        public boolean isExpired ()
+        {
+            synchronized (TimingWheel.this)
+            {
+                return (state == EXPIRED);
+            }
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind;
+
+import org.lucidj.admind.shared.AdmindUtil;
+import org.lucidj.admind.shared.TrafficTrace;
+import org.lucidj.admind.shared.TransactionFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Appends every dispatched request to a TrafficTrace file, for an offline
+// replay later. Once the file reaches max_bytes it is rotated to <file>.1
+// (the previous one is dropped), so the disk usage stays under 2x max_bytes.
+// Payloads up to max_payload bytes are stored when record_payload is set,
+// only their size otherwise. Self-probes (AdmindUtil.PROBE_OPTION) are skipped.
+//
+// The watcher thread only queues the records, the file I/O happens on the
+// recorder thread. The payload is opened before queueing, so it can still be
+// read once the client removed the request. Records are flushed whenever the
+// queue drains; a crash loses whatever was still queued or buffered. When the
+// queue is full the record is dropped rather than holding the watcher.
+//
+public class TrafficRecorder
+{
+    private final static Logger log = LoggerFactory.getLogger (TrafficRecorder.class);
+
+    private final static int QUEUE_SIZE = 1024;
+    private final static Pending END_OF_RECORDING = new Pending (0, false, null, null, 0, null);
+
+    private final File trace_file;
+    private final long max_bytes;
+    private final boolean record_payload;
+    private final int max_payload;
+    private final BlockingQueue<Pending> queue = new ArrayBlockingQueue<> (QUEUE_SIZE);
+    private long dropped;
+    private Thread recorder_thread;
+    private TrafficTrace.Writer writer;
+
+    public TrafficRecorder (File trace_file, long max_bytes, boolean record_payload, int max_payload)
+    {
+        this.trace_file = trace_file;
+        this.max_bytes = max_bytes;
+        this.record_payload = record_payload;
+        this.max_payload = max_payload;
+    }
+
+    //=================================================================================================================
+    // RECORDER THREAD
+    //=================================================================================================================
+
+    private void open ()
+        throws IOException
+    {
+        if (trace_file.exists ())
+        {
+            File previous = new File (trace_file.getPath () + ".1");
+            Files.move (trace_file.toPath (), previous.toPath (), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        // Payloads may be sensitive, same owner-only permissions as requests
+        writer = new TrafficTrace.Writer (AdmindUtil.newOutputStream (trace_file));
+        log.info ("Recording traffic on {}", trace_file);
+    }
+
+    private void close_writer ()
+    {
+        if (writer != null)
+        {
+            try
+            {
+                writer.close ();
+            }
+            catch (IOException ignore) {};
+
+            writer = null;
+        }
+    }
+
+    private void write (Pending pending)
+    {
+        byte[] payload = null;
+
+        try
+        {
+            payload = pending.readPayload ();
+        }
+        catch (IOException ignore) {}
+        finally
+        {
+            pending.closeSource ();
+        }
+
+        try
+        {
+            if (writer == null || writer.getWritten () >= max_bytes)
+            {
+                close_writer ();
+                open ();
+            }
+            writer.write (new TrafficTrace.Record (pending.timestamp_ms, pending.transaction,
+                pending.name, pending.options, pending.payload_size, payload));
+
+            if (queue.isEmpty ())
+            {
+                // Batches the writes under load, no record waits for the next one
+                writer.flush ();
+            }
+        }
+        catch (IOException e)
+        {
+            log.warn ("Exception recording traffic on {}: {}", trace_file, e.toString ());
+            close_writer ();
+        }
+    }
+
+    private void run_recorder ()
+    {
+        Pending pending;
+
+        try
+        {
+            while ((pending = queue.take ()) != END_OF_RECORDING)
+            {
+                write (pending);
+            }
+        }
+        catch (InterruptedException ignore) {};
+
+        // Drop whatever close() didn't wait for
+        while ((pending = queue.poll ()) != null)
+        {
+            pending.closeSource ();
+        }
+        close_writer ();
+    }
+
+    public synchronized void start (ThreadGroup group, String name)
+    {
+        if (recorder_thread != null)
+        {
+            // Already running
+            return;
+        }
+
+        recorder_thread = new Thread (group, new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                run_recorder ();
+            }
+        }, name);
+        recorder_thread.setDaemon (true);
+        recorder_thread.start ();
+    }
+
+    public void close ()
+    {
+        Thread thread;
+
+        synchronized (this)
+        {
+            thread = recorder_thread;
+            recorder_thread = null;
+        }
+
+        if (thread == null)
+        {
+            return;
+        }
+
+        try
+        {
+            // Everything queued so far is written before the trace is closed
+            if (queue.offer (END_OF_RECORDING, 1, TimeUnit.SECONDS))
+            {
+                thread.join (5000);
+            }
+        }
+        catch (InterruptedException ignore) {};
+
+        if (thread.isAlive ())
+        {
+            // Stuck on I/O, the trace will be cut short
+            thread.interrupt ();
+        }
+    }
+
+    //=================================================================================================================
+    // WATCHER THREAD
+    //=================================================================================================================
+
+    private static boolean is_probe (String[] options)
+    {
+        for (String option: options)
+        {
+            if (AdmindUtil.PROBE_OPTION.equals (option))
+            {
+                return (true);
+            }
+        }
+        return (false);
+    }
+
+    private void queue (Pending pending)
+    {
+        if (!queue.offer (pending))
+        {
+            pending.closeSource ();
+
+            if (dropped++ % QUEUE_SIZE == 0)
+            {
+                log.warn ("Traffic recording can't keep up, {} records dropped", dropped);
+            }
+        }
+    }
+
+    public void recordRequest (TaskIdentifier task_id, File request_file)
+    {
+        if (is_probe (task_id.getOptions ()))
+        {
+            return;
+        }
+
+        long size = request_file.length ();
+        Closeable source = null;
+
+        if (record_payload && size <= max_payload)
+        {
+            try
+            {
+                source = new FileInputStream (request_file);
+            }
+            catch (IOException ignore) {};
+        }
+        queue (new Pending (System.currentTimeMillis (), false,
+            task_id.getName (), task_id.getOptions (), size, source));
+    }
+
+    public void recordTransaction (TaskIdentifier task_id, TransactionFile transaction, File txn_file)
+    {
+        if (is_probe (task_id.getOptions ()))
+        {
+            return;
+        }
+
+        long size = transaction.getRequestLength ();
+        Closeable source = null;
+
+        if (record_payload && size <= max_payload)
+        {
+            try
+            {
+                // Our own channel, the task thread closes the one it was given
+                source = TransactionFile.open (txn_file);
+            }
+            catch (IOException ignore) {};
+        }
+        queue (new Pending (System.currentTimeMillis (), true,
+            task_id.getName (), task_id.getOptions (), size, source));
+    }
+
+    static class Pending
+    {
+        private final long timestamp_ms;
+        private final boolean transaction;
+        private final String name;
+        private final String[] options;
+        private final long payload_size;
+        private final Closeable source;
+
+        Pending (long timestamp_ms, boolean transaction, String name, String[] options,
+                 long payload_size, Closeable source)
+        {
+            this.timestamp_ms = timestamp_ms;
+            this.transaction = transaction;
+            this.name = name;
+            this.options = options;
+            this.payload_size = payload_size;
+            this.source = source;
+        }
+
+        byte[] readPayload ()
+            throws IOException
+        {
+            if (source instanceof TransactionFile)
+            {
+                TransactionFile transaction_file = (TransactionFile)source;
+                return (transaction_file.readHeader ()? transaction_file.readRequest (): null);
+            }
+
+            if (source instanceof FileInputStream)
+            {
+                // The size seen on dispatch, the request is complete by then
+                byte[] payload = new byte [(int)payload_size];
+                new DataInputStream ((FileInputStream)source).readFully (payload);
+                return (payload);
+            }
+            return (null);
+        }
+
+        void closeSource ()
+        {
+            if (source != null)
+            {
+                try
+                {
+                    source.close ();
+                }
+                catch (IOException ignore) {};
+            }
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind;
+
+import org.lucidj.admind.shared.AdmindUtil;
+import org.lucidj.admind.shared.TransactionFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class TransactionReaper
+{
+    private final static Logger log = LoggerFactory.getLogger (TransactionReaper.class);
+
+    private final static String[] TRANSACTION_SUFFIXES =
+    {
+        AdmindUtil.REQUEST_SUFFIX,
+        AdmindUtil.RESPONSE_SUFFIX,
+        AdmindUtil.STATUS_SUFFIX,
+        AdmindUtil.TEMP_SUFFIX,
+        AdmindUtil.TRANSACTION_SUFFIX,
+        AdmindUtil.RING_SUFFIX
+    };
+
+    private final TimingWheel timing_wheel;
+    private final long ttl_ms;
+    private final Map<String, Transaction> transactions = new ConcurrentHashMap<> ();
+
+    public TransactionReaper (TimingWheel timing_wheel, long ttl_ms)
+    {
+        this.timing_wheel = timing_wheel;
+        this.ttl_ms = ttl_ms;
+    }
+
+    public int getTracked ()
+    {
+        return (transactions.size ());
+    }
+
+    private static String transaction_base (String path)
+    {
+        for (String suffix: TRANSACTION_SUFFIXES)
+        {
+            if (path.endsWith (suffix))
+            {
+                return (path.substring (0, path.length () - suffix.length ()));
+            }
+        }
+        return (null);
+    }
+
+    private void track (String base, long delay_ms)
+    {
+        Transaction transaction = new Transaction (base);
+
+        // Only the first file seen for a transaction starts the clock
+        if (transactions.putIfAbsent (base, transaction) == null)
+        {
+            transaction.arm (delay_ms);
+        }
+    }
+
+    public void track (File file)
+    {
+        String base = transaction_base (file.getPath ());
+
+        if (base != null)
+        {
+            track (base, ttl_ms);
+        }
+    }
+
+    public void forget (File file)
+    {
+        // The status file (or the single transaction file) is the last one removed
+        // by a well behaved client, once it is gone there is nothing left to reap
+        if (!file.getName ().endsWith (AdmindUtil.STATUS_SUFFIX)
+            && !file.getName ().endsWith (AdmindUtil.TRANSACTION_SUFFIX))
+        {
+            return;
+        }
+
+        Transaction transaction = transactions.remove (transaction_base (file.getPath ()));
+
+        if (transaction != null)
+        {
+            transaction.cancel ();
+        }
+    }
+
+    public void scan (String admind_dir)
+    {
+        // Pick up whatever was left behind before we started watching.
+        // This is the only place where the whole directory is listed.
+        File[] file_list = new File (admind_dir).listFiles ();
+
+        if (file_list == null)
+        {
+            return;
+        }
+
+        long now = System.currentTimeMillis ();
+
+        for (File file: file_list)
+        {
+            String base = transaction_base (file.getPath ());
+
+            if (base != null)
+            {
+                long age_ms = Math.max (now - file.lastModified (), 0);
+                track (base, Math.max (ttl_ms - age_ms, 0));
+            }
+        }
+    }
+
+    public void clear ()
+    {
+        for (Transaction transaction: transactions.values ())
+        {
+            transaction.cancel ();
+        }
+        transactions.clear ();
+    }
+
+    private static boolean is_running (String base)
+    {
+        File txn_file = new File (base + AdmindUtil.TRANSACTION_SUFFIX);
+
+        if (!txn_file.exists ())
+        {
+            return (new File (base + AdmindUtil.TEMP_SUFFIX).exists ());
+        }
+
+        try (TransactionFile transaction = TransactionFile.open (txn_file))
+        {
+            transaction.readHeader ();
+            return (transaction.getState () == TransactionFile.STATE_RUNNING);
+        }
+        catch (IOException e)
+        {
+            return (false);
+        }
+    }
+
+    private void reap (Transaction transaction)
+    {
+        if (is_running (transaction.base))
+        {
+            // The task is still running, check again later
+            transaction.arm (ttl_ms);
+            return;
+        }
+
+        transactions.remove (transaction.base);
+        int removed = 0;
+
+        for (String suffix: TRANSACTION_SUFFIXES)
+        {
+            if (new File (transaction.base + suffix).delete ())
+            {
+                removed++;
+            }
+        }
+
+        if (removed != 0)
+        {
+            log.info ("Reaped expired transaction {} ({} files)", transaction.base, removed);
+        }
+    }
+
+    class Transaction implements Runnable
+    {
+        private final String base;
+        private TimingWheel.Timeout timeout;
+        private boolean cancelled;
+
+        Transaction (String base)
+        {
+            this.base = base;
+        }
+
+        // Arming and cancelling are serialized, a forget() racing with track()
+        // either prevents the timeout or cancels the one just armed
+        synchronized void arm (long delay_ms)
+        {
+            if (!cancelled)
+            {
+                timeout = timing_wheel.schedule (this, delay_ms);
+            }
+        }
+
+        synchronized void cancel ()
+        {
+            cancelled = true;
+
+            if (timeout != null)
+            {
+                timeout.cancel ();
+            }
+        }
+
+        @Override // Runnable
+        public void run ()
+        {
+            reap (this);
+        }
+
+        @Override
+        public String toString ()
+        {
+            return (base);
+        }
+    }
+}
+
+// EOF
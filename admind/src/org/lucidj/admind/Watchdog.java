@@ -0,0 +1,72 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Tracks running tasks against their deadline on the timing wheel. The
+// deadline comes from the request ('_deadline<ms>' option), then from the
+// provider (TaskProvider.DEADLINE_MS service property), then from the
+// admind.task.deadline.ms default; 0 means no deadline. On expiry the
+// task stack goes to the status, and the task thread is interrupted.
+//
+public class Watchdog
+{
+    private final static Logger log = LoggerFactory.getLogger (Watchdog.class);
+
+    private final TimingWheel timing_wheel;
+    private final long default_deadline_ms;
+    private final AtomicLong expired = new AtomicLong ();
+
+    public Watchdog (TimingWheel timing_wheel, long default_deadline_ms)
+    {
+        this.timing_wheel = timing_wheel;
+        this.default_deadline_ms = default_deadline_ms;
+    }
+
+    public long getExpired ()
+    {
+        return (expired.get ());
+    }
+
+    public TimingWheel.Timeout watch (final TaskThread task_thread, long request_deadline_ms, long provider_deadline_ms)
+    {
+        long deadline_ms = (request_deadline_ms > 0)? request_deadline_ms:
+            (provider_deadline_ms > 0)? provider_deadline_ms: default_deadline_ms;
+
+        if (deadline_ms <= 0)
+        {
+            return (null);
+        }
+
+        return (timing_wheel.schedule (new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                expired.incrementAndGet ();
+                log.warn ("Task {} exceeded its deadline, interrupting", task_thread.getName ());
+                task_thread.expire ();
+            }
+        }, deadline_ms));
+    }
+}
+
+// EOF
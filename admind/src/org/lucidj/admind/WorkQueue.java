@@ -0,0 +1,219 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind;
+
+import org.lucidj.admind.shared.AdmindUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Polls the shared queue dir of our server.name and claims requests while
+// we have spare capacity. The claim is an atomic rename into our own AdminD
+// dir: only one JVM wins, the others get NoSuchFileException and move on.
+// From there the request is picked up by the Admind watcher like any other.
+//
+// A claimed request counts as queued on the LoadMonitor from just before
+// the rename until the watcher dispatches it (see takeClaim()), so the
+// backlog shows up in the published load and in our own spare capacity.
+// The slot is reserved against admind.queue.max.active before the rename,
+// so claims never go past it.
+//
+// Requests nobody claims within the TTL, and partial ones left by dead
+// clients, are removed by whichever JVM serving the queue sees them first.
+//
+public class WorkQueue implements Runnable
+{
+    private final static Logger log = LoggerFactory.getLogger (WorkQueue.class);
+
+    private final LoadMonitor load_monitor;
+    private final String queue_dir;
+    private final long poll_ms;
+    private final int max_active;
+    private final long ttl_ms;
+    private long next_reap_ms;
+    private volatile String admind_dir;
+    private final Set<String> claims = ConcurrentHashMap.newKeySet ();
+
+    public WorkQueue (String queue_dir, LoadMonitor load_monitor, long poll_ms, int max_active, long ttl_ms)
+    {
+        this.queue_dir = queue_dir;
+        this.load_monitor = load_monitor;
+        this.poll_ms = poll_ms;
+        this.max_active = max_active;
+        this.ttl_ms = ttl_ms;
+    }
+
+    public String getQueueDir ()
+    {
+        return (queue_dir);
+    }
+
+    public void setAdmindDir (String admind_dir)
+    {
+        if (admind_dir == null || !admind_dir.equals (this.admind_dir))
+        {
+            // Whatever we claimed into the old dir will never be dispatched
+            for (String file_name: claims)
+            {
+                release_claim (file_name);
+            }
+        }
+
+        // The AdminD dir may be recreated under our feet
+        this.admind_dir = admind_dir;
+    }
+
+    private void release_claim (String file_name)
+    {
+        if (claims.remove (file_name))
+        {
+            load_monitor.taskUnqueued ();
+        }
+    }
+
+    public boolean takeClaim (String file_name)
+    {
+        // The watcher is dispatching one of our claims, the queued slot goes along
+        return (claims.remove (file_name));
+    }
+
+    private int spare_capacity ()
+    {
+        return (max_active - load_monitor.getActive () - load_monitor.getQueued ());
+    }
+
+    private int claim_requests (String target_dir)
+    {
+        int claimed = 0;
+
+        try (DirectoryStream<Path> queued = Files.newDirectoryStream (Paths.get (queue_dir),
+            "*" + AdmindUtil.REQUEST_SUFFIX))
+        {
+            for (Path request: queued)
+            {
+                // The slot is taken before the rename, the watcher may dispatch right after it
+                if (!load_monitor.tryQueued (max_active))
+                {
+                    break;
+                }
+
+                String file_name = request.getFileName ().toString ();
+                boolean moved = false;
+                claims.add (file_name);
+
+                try
+                {
+                    Files.move (request, Paths.get (target_dir, file_name), StandardCopyOption.ATOMIC_MOVE);
+                    moved = true;
+                    claimed++;
+                }
+                catch (NoSuchFileException | FileAlreadyExistsException lost)
+                {
+                    // Another JVM was faster
+                }
+                finally
+                {
+                    if (!moved)
+                    {
+                        release_claim (file_name);
+                    }
+                }
+            }
+        }
+        catch (IOException | DirectoryIteratorException e)
+        {
+            log.debug ("Exception polling {}: {}", queue_dir, e.toString ());
+        }
+        return (claimed);
+    }
+
+    private void reap_expired ()
+    {
+        long now = System.currentTimeMillis ();
+        int reaped = 0;
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream (Paths.get (queue_dir)))
+        {
+            for (Path file: files)
+            {
+                try
+                {
+                    if (Files.getLastModifiedTime (file).toMillis () + ttl_ms < now && Files.deleteIfExists (file))
+                    {
+                        reaped++;
+                    }
+                }
+                catch (IOException ignore) {};
+            }
+        }
+        catch (IOException | DirectoryIteratorException e)
+        {
+            log.debug ("Exception reaping {}: {}", queue_dir, e.toString ());
+        }
+
+        if (reaped != 0)
+        {
+            log.info ("Reaped {} expired requests from {}", reaped, queue_dir);
+        }
+    }
+
+    @Override // Runnable
+    public void run ()
+    {
+        log.info ("Serving work queue {}", queue_dir);
+
+        while (!Thread.currentThread ().isInterrupted ())
+        {
+            String target_dir = admind_dir;
+            int claimed = 0;
+
+            if (ttl_ms > 0 && System.currentTimeMillis () >= next_reap_ms)
+            {
+                // A full listing with a stat() per file, only a few times per TTL
+                reap_expired ();
+                next_reap_ms = System.currentTimeMillis () + Math.max (ttl_ms / 4, poll_ms);
+            }
+
+            if (target_dir != null && spare_capacity () > 0)
+            {
+                claimed = claim_requests (target_dir);
+
+                if (claimed != 0)
+                {
+                    log.debug ("Claimed {} requests from {}", claimed, queue_dir);
+                }
+            }
+
+            try
+            {
+                // Also gives the watcher time to account what we claimed
+                Thread.sleep (poll_ms);
+            }
+            catch (InterruptedException e)
+            {
+                break;
+            }
+        }
+        log.info ("Work queue {} stopped", queue_dir);
+    }
+}
+
+// EOF
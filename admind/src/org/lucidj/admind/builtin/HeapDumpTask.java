@@ -0,0 +1,98 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind.builtin;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import org.lucidj.admind.shared.AdmindUtil;
+import org.lucidj.api.admind.Task;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.zip.GZIPOutputStream;
+
+// Dumps the heap into the AdminD dir (owner-only, and hopefully on tmpfs)
+// and streams it gzip compressed as response, so the .hprof never goes
+// through the heap being dumped. The dump file is removed right after.
+// Options:
+//
+// all    include unreachable objects (by default only live ones are
+//        dumped, which forces a full GC first).
+//
+public class HeapDumpTask implements Task
+{
+    public final static String NAME = "heapdump";
+
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    private InputStream in;
+    private OutputStream out;
+    private OutputStream err;
+    private boolean live_only = true;
+
+    public HeapDumpTask (InputStream in, OutputStream out, OutputStream err, String name, String... options)
+    {
+        this.in = in;
+        this.out = out;
+        this.err = err;
+
+        for (String option: options)
+        {
+            if (option.equals ("all"))
+            {
+                live_only = false;
+            }
+        }
+    }
+
+    @Override // Task
+    public boolean run ()
+        throws Exception
+    {
+        String admind_dir = AdmindUtil.getAdmindDir ();
+
+        if (admind_dir == null)
+        {
+            err.write ("AdminD directory not available\n".getBytes ());
+            return (false);
+        }
+
+        // dumpHeap() refuses existing files and wants the .hprof extension
+        File dump_file = new File (admind_dir, "heapdump-" + Long.toHexString (System.nanoTime ()) + ".hprof");
+
+        try
+        {
+            HotSpotDiagnosticMXBean hotspot = ManagementFactory.getPlatformMXBean (HotSpotDiagnosticMXBean.class);
+            hotspot.dumpHeap (dump_file.getAbsolutePath (), live_only);
+
+            // Finish the gzip stream, but the response itself is closed by the caller
+            GZIPOutputStream gzip_out = new GZIPOutputStream (out, BUFFER_SIZE);
+            Files.copy (dump_file.toPath (), gzip_out);
+            gzip_out.finish ();
+            gzip_out.flush ();
+            return (true);
+        }
+        finally
+        {
+            dump_file.delete ();
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind.builtin;
+
+import org.lucidj.api.admind.Task;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// Class histogram, top-N classes by bytes and by instance count. Options:
+//
+// <n>     how many classes on each list (default 20, at most 1000);
+// nogc    count unreachable objects too, without forcing a full GC first.
+//
+// The histogram comes from the 'GC.class_histogram' diagnostic command,
+// its size depends on the loaded classes, not on the heap. Each list is
+// aggregated on a bounded heap of N entries, whatever the class count.
+//
+public class HistogramTask implements Task
+{
+    public final static String NAME = "histogram";
+
+    private final static String DIAGNOSTIC_COMMAND = "com.sun.management:type=DiagnosticCommand";
+    private final static int DEFAULT_TOP = 20;
+    private final static int MAX_TOP = 1000;
+
+    private final static Comparator<ClassEntry> BY_BYTES = new Comparator<ClassEntry> ()
+    {
+        @Override
+        public int compare (ClassEntry a, ClassEntry b)
+        {
+            return (Long.compare (a.bytes, b.bytes));
+        }
+    };
+
+    private final static Comparator<ClassEntry> BY_COUNT = new Comparator<ClassEntry> ()
+    {
+        @Override
+        public int compare (ClassEntry a, ClassEntry b)
+        {
+            return (Long.compare (a.instances, b.instances));
+        }
+    };
+
+    private InputStream in;
+    private OutputStream out;
+    private OutputStream err;
+    private int top = DEFAULT_TOP;
+    private boolean full_gc = true;
+
+    public HistogramTask (InputStream in, OutputStream out, OutputStream err, String name, String... options)
+    {
+        this.in = in;
+        this.out = out;
+        this.err = err;
+
+        for (String option: options)
+        {
+            if (option.matches ("\\d{1,9}"))
+            {
+                top = Math.max (1, Math.min (Integer.parseInt (option), MAX_TOP));
+            }
+            else if (option.equals ("nogc"))
+            {
+                full_gc = false;
+            }
+        }
+    }
+
+    private static void offer (PriorityQueue<ClassEntry> queue, ClassEntry entry, int limit)
+    {
+        // Min-heap of the best N so far, the smallest one is dropped
+        queue.add (entry);
+
+        if (queue.size () > limit)
+        {
+            queue.poll ();
+        }
+    }
+
+    private static ClassEntry parse_line (String line)
+    {
+        // "   1:          5209         243696  [B (java.base@17.0.9)"
+        String[] fields = line.trim ().split ("\\s+");
+
+        if (fields.length < 4 || !fields [0].endsWith (":"))
+        {
+            return (null);
+        }
+
+        try
+        {
+            return (new ClassEntry (fields [3], Long.parseLong (fields [1]), Long.parseLong (fields [2])));
+        }
+        catch (NumberFormatException e)
+        {
+            return (null);
+        }
+    }
+
+    private static void print (PrintWriter writer, String title, PriorityQueue<ClassEntry> queue,
+                               Comparator<ClassEntry> order)
+    {
+        List<ClassEntry> sorted = new ArrayList<> (queue);
+        Collections.sort (sorted, Collections.reverseOrder (order));
+
+        writer.println (title);
+        writer.printf ("%5s %14s %16s  %s%n", "rank", "instances", "bytes", "class");
+
+        for (int i = 0; i < sorted.size (); i++)
+        {
+            ClassEntry entry = sorted.get (i);
+            writer.printf ("%5d %14d %16d  %s%n", i + 1, entry.instances, entry.bytes, entry.class_name);
+        }
+        writer.println ();
+    }
+
+    @Override // Task
+    public boolean run ()
+        throws Exception
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer ();
+        String[] args = full_gc? new String [0]: new String[] { "-all" };
+        Object histogram = server.invoke (new ObjectName (DIAGNOSTIC_COMMAND), "gcClassHistogram",
+            new Object[] { args }, new String[] { String[].class.getName () });
+
+        PriorityQueue<ClassEntry> by_bytes = new PriorityQueue<> (top + 1, BY_BYTES);
+        PriorityQueue<ClassEntry> by_count = new PriorityQueue<> (top + 1, BY_COUNT);
+        long total_instances = 0;
+        long total_bytes = 0;
+        int classes = 0;
+
+        for (String line: String.valueOf (histogram).split ("\n"))
+        {
+            ClassEntry entry = parse_line (line);
+
+            if (entry != null)
+            {
+                classes++;
+                total_instances += entry.instances;
+                total_bytes += entry.bytes;
+                offer (by_bytes, entry, top);
+                offer (by_count, entry, top);
+            }
+        }
+
+        PrintWriter writer = new PrintWriter (new OutputStreamWriter (out, StandardCharsets.UTF_8));
+        writer.printf ("classes=%d instances=%d bytes=%d live=%s%n%n", classes, total_instances, total_bytes, full_gc);
+        print (writer, "Top " + top + " by bytes", by_bytes, BY_BYTES);
+        print (writer, "Top " + top + " by instances", by_count, BY_COUNT);
+        writer.flush ();
+        return (classes != 0);
+    }
+
+    static class ClassEntry
+    {
+        private final String class_name;
+        private final long instances;
+        private final long bytes;
+
+        ClassEntry (String class_name, long instances, long bytes)
+        {
+            this.class_name = class_name;
+            this.instances = instances;
+            this.bytes = bytes;
+        }
+    }
+}
+
+// EOF
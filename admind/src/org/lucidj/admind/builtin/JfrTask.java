@@ -0,0 +1,142 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind.builtin;
+
+import org.lucidj.api.admind.Task;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Takes a Flight Recorder recording and streams the .jfr file as response.
+// Options are the duration in seconds and/or the settings profile, in any
+// order, like 'jfr--60-default--<id>'. Defaults are 10 seconds and 'profile',
+// short enough for the default client wait (15s); longer recordings need the
+// client to wait longer, like AdmindUtil.asyncWait (request, timeout_ms).
+//
+// The recording is driven through the DiagnosticCommand MBean, in-process,
+// so no JMX port is needed, and this works the same on 8u262+ and 11+.
+// It is dumped into an owner-only temp dir and copied straight to the
+// response, never buffered on the heap.
+//
+public class JfrTask implements Task
+{
+    public final static String NAME = "jfr";
+
+    private final static String DIAGNOSTIC_COMMAND = "com.sun.management:type=DiagnosticCommand";
+    private final static int DEFAULT_DURATION_S = 10;
+    private final static int MAX_DURATION_S = 3600;
+    private final static String DEFAULT_SETTINGS = "profile";
+
+    private InputStream in;
+    private OutputStream out;
+    private OutputStream err;
+    private int duration_s = DEFAULT_DURATION_S;
+    private String settings = DEFAULT_SETTINGS;
+
+    public JfrTask (InputStream in, OutputStream out, OutputStream err, String name, String... options)
+    {
+        this.in = in;
+        this.out = out;
+        this.err = err;
+
+        for (String option: options)
+        {
+            if (option.matches ("\\d{1,9}"))
+            {
+                duration_s = Math.max (1, Math.min (Integer.parseInt (option), MAX_DURATION_S));
+            }
+            else
+            {
+                settings = option;
+            }
+        }
+    }
+
+    private static String dcmd (String operation, String... args)
+        throws Exception
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer ();
+        Object result = server.invoke (new ObjectName (DIAGNOSTIC_COMMAND), operation,
+            new Object[] { args }, new String[] { String[].class.getName () });
+        return ((result == null)? "": result.toString ());
+    }
+
+    private boolean error (String message)
+        throws Exception
+    {
+        err.write ((message + "\n").getBytes (StandardCharsets.UTF_8));
+        return (false);
+    }
+
+    @Override // Task
+    public boolean run ()
+        throws Exception
+    {
+        // Owner-only temp dir (rwx------), no one else gets a peek
+        Path jfr_dir = Files.createTempDirectory ("admind-jfr-");
+        Path jfr_file = jfr_dir.resolve ("recording.jfr");
+        String recording = "admind-" + jfr_dir.getFileName ();
+        boolean started = false;
+
+        try
+        {
+            String start_output = dcmd ("jfrStart", "name=" + recording, "settings=" + settings);
+
+            if (!start_output.contains ("Started recording"))
+            {
+                return (error ("Unable to start recording: " + start_output.trim ()));
+            }
+            started = true;
+
+            Thread.sleep (duration_s * 1000L);
+
+            dcmd ("jfrStop", "name=" + recording, "filename=" + jfr_file.toAbsolutePath ());
+            started = false;
+
+            if (!Files.isRegularFile (jfr_file))
+            {
+                return (error ("Recording " + recording + " produced no file"));
+            }
+
+            // Streamed straight from disk
+            Files.copy (jfr_file, out);
+            return (true);
+        }
+        finally
+        {
+            if (started)
+            {
+                // Interrupted or failed, don't leave the recording running
+                try
+                {
+                    dcmd ("jfrStop", "name=" + recording);
+                }
+                catch (Exception ignore) {};
+            }
+            Files.deleteIfExists (jfr_file);
+            Files.deleteIfExists (jfr_dir);
+        }
+    }
+}
+
+// EOF
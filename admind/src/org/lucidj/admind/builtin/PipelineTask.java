@@ -0,0 +1,381 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind.builtin;
+
+import org.lucidj.admind.BoundedPipe;
+import org.lucidj.admind.TaskProviderIndex;
+import org.lucidj.admind.shared.AdmindUtil;
+import org.lucidj.api.admind.Task;
+import org.lucidj.api.admind.TaskContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Runs a chain of tasks like a shell pipeline. The request starts with the
+// stages encoded as arguments (see AdmindUtil.encodePipeline()), one stage
+// per argument as "name [option...]", followed by the input of the first
+// stage. Every stage runs on its own thread, connected to the next one by
+// a bounded in-memory pipe; only the last stage writes to our output.
+//
+// The pipeline succeeds only if every stage succeeds, a stage stopped by a
+// broken pipe is fine as long as the stages after it succeed. Errors from
+// all the stages go to our error stream, each line prefixed by the stage
+// name and written whole, so lines from different stages never mix.
+//
+// Only the pipeline as a whole is tracked: TaskStats, the load monitor and
+// the watchdog see the TaskThread running us, not the stage threads. When
+// the deadline expires we are interrupted and interrupt every stage.
+//
+public class PipelineTask implements Task
+{
+    public final static String NAME = AdmindUtil.PIPELINE_TASK;
+
+    private TaskProviderIndex index;
+    private int selection_policy;
+    private int pipe_size;
+    private InputStream in;
+    private OutputStream out;
+    private OutputStream err;
+
+    public PipelineTask (TaskProviderIndex index, int selection_policy, int pipe_size,
+                         InputStream in, OutputStream out, OutputStream err, String name, String... options)
+    {
+        this.index = index;
+        this.selection_policy = selection_policy;
+        this.pipe_size = pipe_size;
+        this.in = in;
+        this.out = out;
+        this.err = err;
+    }
+
+    private boolean error (String message)
+        throws IOException
+    {
+        err.write ((message + "\n").getBytes (StandardCharsets.UTF_8));
+        return (false);
+    }
+
+    @Override // Task
+    public boolean run ()
+        throws Exception
+    {
+        String[] stage_specs = AdmindUtil.decodeArgs (in);
+
+        if (stage_specs.length == 0)
+        {
+            return (error ("Empty pipeline"));
+        }
+
+        OutputStream shared_err = new SharedOutputStream (err);
+        Stage[] stages = new Stage [stage_specs.length];
+
+        // Resolve everything before starting anything
+        for (int i = 0; i < stages.length; i++)
+        {
+            String[] words = stage_specs [i].trim ().split ("\\s+");
+            TaskProviderIndex.Entry entry = words [0].isEmpty ()? null: index.select (words [0], selection_policy);
+
+            if (entry == null)
+            {
+                return (error ("Pipeline stage " + (i + 1) + ": task '" + stage_specs [i] + "' not found"));
+            }
+
+            if (words [0].equals (NAME))
+            {
+                return (error ("Pipeline stage " + (i + 1) + ": pipelines can't be nested"));
+            }
+            stages [i] = new Stage (entry, words [0], Arrays.copyOfRange (words, 1, words.length),
+                new PrefixOutputStream (shared_err, words [0] + ": "));
+        }
+
+        // Connect the stages, the first one reads the rest of our request
+        stages [0].in = in;
+
+        for (int i = 0; i < stages.length - 1; i++)
+        {
+            BoundedPipe pipe = new BoundedPipe (pipe_size);
+            stages [i].out = pipe.getOutputStream ();
+            stages [i].out_pipe = pipe;
+            stages [i + 1].in = pipe.getInputStream ();
+            stages [i + 1].piped_in = true;
+        }
+        stages [stages.length - 1].out = new SharedOutputStream (out);
+
+        Thread[] threads = new Thread [stages.length];
+
+        for (int i = 0; i < stages.length; i++)
+        {
+            threads [i] = new Thread (Thread.currentThread ().getThreadGroup (), stages [i],
+                Thread.currentThread ().getName () + " [" + (i + 1) + ":" + stages [i].name + "]");
+            threads [i].setDaemon (true);
+            threads [i].start ();
+        }
+
+        boolean success = true;
+
+        for (int i = 0; i < stages.length; i++)
+        {
+            try
+            {
+                threads [i].join ();
+            }
+            catch (InterruptedException e)
+            {
+                // Give up on everybody
+                for (Thread thread: threads)
+                {
+                    thread.interrupt ();
+                }
+                throw (e);
+            }
+            success &= stages [i].success;
+        }
+        return (success);
+    }
+
+    class Stage implements Runnable, TaskContext
+    {
+        private final TaskProviderIndex.Entry entry;
+        private final String name;
+        private final String[] options;
+        private final OutputStream err;
+        private InputStream in;
+        private boolean piped_in;
+        private OutputStream out;
+        private BoundedPipe out_pipe;
+        private volatile boolean success;
+
+        Stage (TaskProviderIndex.Entry entry, String name, String[] options, OutputStream err)
+        {
+            this.entry = entry;
+            this.name = name;
+            this.options = options;
+            this.err = err;
+        }
+
+        @Override // Runnable
+        public void run ()
+        {
+            entry.acquire ();
+
+            try
+            {
+                if (entry.getHandler () != null)
+                {
+                    success = entry.getHandler ().handle (this);
+                }
+                else
+                {
+                    Task task = entry.getProvider ().createTask (in, out, err, name, options);
+                    success = task.run ();
+                }
+            }
+            catch (Throwable t)
+            {
+                if (out_pipe != null && out_pipe.isBroken ())
+                {
+                    // Like SIGPIPE, the next stage just didn't want more data
+                    success = true;
+                    return;
+                }
+
+                PrintStream ps = new PrintStream (err);
+                t.printStackTrace (ps);
+                ps.flush ();
+            }
+            finally
+            {
+                entry.release ();
+
+                // EOF downstream, broken pipe upstream
+                try
+                {
+                    out.close ();
+                }
+                catch (IOException ignore) {};
+
+                try
+                {
+                    // Whatever is left of the last line
+                    err.close ();
+                }
+                catch (IOException ignore) {};
+
+                if (piped_in)
+                {
+                    try
+                    {
+                        in.close ();
+                    }
+                    catch (IOException ignore) {};
+                }
+            }
+        }
+
+        @Override // TaskContext
+        public String getTaskName ()
+        {
+            return (name);
+        }
+
+        @Override // TaskContext
+        public String[] getTaskOptions ()
+        {
+            return (options);
+        }
+
+        @Override // TaskContext
+        public InputStream getInputStream ()
+        {
+            return (in);
+        }
+
+        @Override // TaskContext
+        public OutputStream getOutputStream ()
+        {
+            return (out);
+        }
+
+        @Override // TaskContext
+        public OutputStream getErrorStream ()
+        {
+            return (err);
+        }
+    }
+
+    // The error stream of a single stage. Every line goes out whole with the
+    // prefix in front, an unterminated last line is terminated on close.
+    static class PrefixOutputStream extends OutputStream
+    {
+        private final OutputStream target;
+        private final byte[] prefix;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream ();
+
+        PrefixOutputStream (OutputStream target, String prefix)
+        {
+            this.target = target;
+            this.prefix = prefix.getBytes (StandardCharsets.UTF_8);
+        }
+
+        private void write_line ()
+            throws IOException
+        {
+            target.write (line.toByteArray ());
+            line.reset ();
+        }
+
+        @Override
+        public synchronized void write (int b)
+            throws IOException
+        {
+            if (line.size () == 0)
+            {
+                line.write (prefix, 0, prefix.length);
+            }
+            line.write (b);
+
+            if (b == '\n')
+            {
+                write_line ();
+            }
+        }
+
+        @Override
+        public synchronized void write (byte[] b, int off, int len)
+            throws IOException
+        {
+            int end = off + len;
+
+            while (off < end)
+            {
+                int start = off;
+
+                while (off < end && b [off++] != '\n');
+
+                if (line.size () == 0)
+                {
+                    line.write (prefix, 0, prefix.length);
+                }
+                line.write (b, start, off - start);
+
+                if (b [off - 1] == '\n')
+                {
+                    write_line ();
+                }
+            }
+        }
+
+        @Override
+        public synchronized void close ()
+            throws IOException
+        {
+            if (line.size () != 0)
+            {
+                line.write ('\n');
+                write_line ();
+            }
+            target.flush ();
+        }
+    }
+
+    // Shared by several stages, writes are serialized and close only flushes,
+    // the real stream belongs to the TaskThread running the pipeline
+    static class SharedOutputStream extends OutputStream
+    {
+        private final OutputStream target;
+
+        SharedOutputStream (OutputStream target)
+        {
+            this.target = target;
+        }
+
+        @Override
+        public synchronized void write (int b)
+            throws IOException
+        {
+            target.write (b);
+        }
+
+        @Override
+        public synchronized void write (byte[] b, int off, int len)
+            throws IOException
+        {
+            target.write (b, off, len);
+        }
+
+        @Override
+        public synchronized void flush ()
+            throws IOException
+        {
+            target.flush ();
+        }
+
+        @Override
+        public void close ()
+            throws IOException
+        {
+            flush ();
+        }
+    }
+}
+
+// EOF
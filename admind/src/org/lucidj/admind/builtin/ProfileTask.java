@@ -0,0 +1,257 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind.builtin;
+
+import org.lucidj.api.admind.Task;
+
+import java.io.BufferedWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Sampling profiler, output in the collapsed stack format of flame graph
+// tools: one line per unique stack, root first, frames separated by ';',
+// then the sample count. Options, in any order:
+//
+// <n>s   duration in seconds (default 10s, at most 600s);
+// <n>hz  sampling rate (default 100hz, at most 1000hz);
+// all    sample every thread, not only the RUNNABLE ones.
+//
+// Only stacks are dumped (no monitors or synchronizers), the cheapest
+// dumpAllThreads() there is. Memory is bounded: frame names are interned
+// up to MAX_FRAMES, and once MAX_STACKS unique stacks are known any new
+// one is counted as '[truncated]'. The sampler overhead is reported on
+// leading '#' lines, which flame graph tools skip.
+//
+public class ProfileTask implements Task
+{
+    public final static String NAME = "profile";
+
+    private final static int DEFAULT_DURATION_S = 10;
+    private final static int MAX_DURATION_S = 600;
+    private final static int DEFAULT_RATE_HZ = 100;
+    private final static int MAX_RATE_HZ = 1000;
+    private final static int MAX_DEPTH = 256;
+    private final static int MAX_FRAMES = 65536;
+    private final static int MAX_STACKS = 20000;
+    private final static String[] TRUNCATED = { "[truncated]" };
+
+    private InputStream in;
+    private OutputStream out;
+    private OutputStream err;
+    private int duration_s = DEFAULT_DURATION_S;
+    private int rate_hz = DEFAULT_RATE_HZ;
+    private boolean all_threads;
+
+    private final Map<StackTraceElement, String> frames = new HashMap<> ();
+    private final Map<Stack, long[]> stacks = new HashMap<> ();
+
+    public ProfileTask (InputStream in, OutputStream out, OutputStream err, String name, String... options)
+    {
+        this.in = in;
+        this.out = out;
+        this.err = err;
+
+        for (String option: options)
+        {
+            if (option.matches ("\\d{1,9}s"))
+            {
+                duration_s = clamp (option.substring (0, option.length () - 1), MAX_DURATION_S);
+            }
+            else if (option.matches ("\\d{1,9}hz"))
+            {
+                rate_hz = clamp (option.substring (0, option.length () - 2), MAX_RATE_HZ);
+            }
+            else if (option.equals ("all"))
+            {
+                all_threads = true;
+            }
+        }
+    }
+
+    private static int clamp (String value, int max)
+    {
+        return (Math.max (1, Math.min (Integer.parseInt (value), max)));
+    }
+
+    private String frame_name (StackTraceElement element)
+    {
+        String frame = frames.get (element);
+
+        if (frame == null)
+        {
+            frame = element.getClassName () + "." + element.getMethodName ();
+
+            if (frames.size () < MAX_FRAMES)
+            {
+                frames.put (element, frame);
+            }
+        }
+        return (frame);
+    }
+
+    private void sample (ThreadMXBean thread_mx, long self_id)
+    {
+        for (ThreadInfo info: thread_mx.dumpAllThreads (false, false))
+        {
+            if (info == null
+                || info.getThreadId () == self_id
+                || (!all_threads && info.getThreadState () != Thread.State.RUNNABLE))
+            {
+                continue;
+            }
+
+            StackTraceElement[] trace = info.getStackTrace ();
+
+            if (trace.length == 0)
+            {
+                continue;
+            }
+
+            // Root first, the deepest frames are dropped on runaway stacks
+            int depth = Math.min (trace.length, MAX_DEPTH);
+            String[] path = new String [depth];
+
+            for (int i = 0; i < depth; i++)
+            {
+                path [i] = frame_name (trace [trace.length - 1 - i]);
+            }
+
+            Stack stack = new Stack (path);
+            long[] count = stacks.get (stack);
+
+            if (count == null)
+            {
+                if (stacks.size () >= MAX_STACKS)
+                {
+                    stack = new Stack (TRUNCATED);
+                    count = stacks.get (stack);
+                }
+
+                if (count == null)
+                {
+                    stacks.put (stack, count = new long [1]);
+                }
+            }
+            count [0]++;
+        }
+    }
+
+    @Override // Task
+    public boolean run ()
+        throws Exception
+    {
+        ThreadMXBean thread_mx = ManagementFactory.getThreadMXBean ();
+        boolean cpu_time = thread_mx.isCurrentThreadCpuTimeSupported ();
+        long self_id = Thread.currentThread ().getId ();
+        long period_ns = 1000000000L / rate_hz;
+        long start = System.nanoTime ();
+        long end = start + duration_s * 1000000000L;
+        long start_cpu = cpu_time? thread_mx.getCurrentThreadCpuTime (): 0;
+        long sampling_ns = 0;
+        int samples = 0;
+        int missed = 0;
+
+        for (long next = start; next < end; next += period_ns)
+        {
+            long now = System.nanoTime ();
+
+            if (now < next)
+            {
+                long sleep_ns = next - now;
+                Thread.sleep (sleep_ns / 1000000L, (int)(sleep_ns % 1000000L));
+            }
+            else if (now - next > period_ns)
+            {
+                // Running late, skip the ticks instead of bursting
+                missed++;
+                continue;
+            }
+
+            long sample_start = System.nanoTime ();
+            sample (thread_mx, self_id);
+            sampling_ns += System.nanoTime () - sample_start;
+            samples++;
+        }
+
+        long wall_ns = System.nanoTime () - start;
+        long self_cpu_ns = cpu_time? thread_mx.getCurrentThreadCpuTime () - start_cpu: -1;
+
+        Writer writer = new BufferedWriter (new OutputStreamWriter (out, StandardCharsets.UTF_8));
+        writer.write ("# samples=" + samples + " missed=" + missed + " rate=" + rate_hz + "hz"
+            + " duration=" + (wall_ns / 1000000L) + "ms\n");
+        // Wall time spent on dumps includes waiting for safepoints, cpu is our own thread only
+        writer.write ("# overhead: sampling_wall=" + (sampling_ns / 1000000L) + "ms"
+            + " (" + String.format (Locale.ROOT, "%.2f", sampling_ns * 100.0 / wall_ns) + "%)"
+            + " cpu=" + ((self_cpu_ns == -1)? "n/a": (self_cpu_ns / 1000000L) + "ms")
+            + " unique_stacks=" + stacks.size () + " interned_frames=" + frames.size () + "\n");
+
+        for (Map.Entry<Stack, long[]> entry: stacks.entrySet ())
+        {
+            String[] path = entry.getKey ().path;
+
+            for (int i = 0; i < path.length; i++)
+            {
+                if (i != 0)
+                {
+                    writer.write (';');
+                }
+                writer.write (path [i]);
+            }
+            writer.write (' ');
+            writer.write (Long.toString (entry.getValue ()[0]));
+            writer.write ('\n');
+        }
+        writer.flush ();
+        return (true);
+    }
+
+    static class Stack
+    {
+        private final String[] path;
+        private final int hash;
+
+        Stack (String[] path)
+        {
+            this.path = path;
+            this.hash = Arrays.hashCode (path);
+        }
+
+        @Override
+        public int hashCode ()
+        {
+            return (hash);
+        }
+
+        @Override
+        public boolean equals (Object other)
+        {
+            return (other instanceof Stack && hash == ((Stack)other).hash && Arrays.equals (path, ((Stack)other).path));
+        }
+    }
+}
+
+// EOF
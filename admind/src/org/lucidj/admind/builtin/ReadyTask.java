@@ -0,0 +1,66 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind.builtin;
+
+import org.lucidj.admind.TaskProviderIndex;
+import org.lucidj.api.admind.Task;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+public class ReadyTask implements Task
+{
+    public final static String NAME = "ready";
+
+    public final static String READY = "ready";
+    public final static String WARMING = "warming";
+    public final static String UNKNOWN = "unknown";
+
+    private TaskProviderIndex index;
+    private InputStream in;
+    private OutputStream out;
+    private OutputStream err;
+
+    public ReadyTask (TaskProviderIndex index, InputStream in, OutputStream out, OutputStream err,
+                      String name, String... options)
+    {
+        this.index = index;
+        this.in = in;
+        this.out = out;
+        this.err = err;
+    }
+
+    @Override // Task
+    public boolean run ()
+        throws Exception
+    {
+        // The request holds the task name we want to know about
+        ByteArrayOutputStream request = new ByteArrayOutputStream ();
+        for (int ch; (ch = in.read ()) != -1; request.write (ch));
+
+        String name = new String (request.toByteArray (), StandardCharsets.UTF_8).trim ();
+        TaskProviderIndex.Group group = name.isEmpty ()? null: index.findGroup (name);
+        String state = (group == null)? UNKNOWN: group.isReady ()? READY: WARMING;
+
+        out.write (state.getBytes (StandardCharsets.UTF_8));
+        return (true);
+    }
+}
+
+// EOF
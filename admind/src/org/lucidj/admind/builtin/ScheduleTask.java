@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind.builtin;
+
+import org.lucidj.admind.Scheduler;
+import org.lucidj.admind.shared.AdmindUtil;
+import org.lucidj.api.admind.Task;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Manages the server-side schedules. The request starts with a command
+// encoded as arguments (see AdmindUtil.scheduleInvoke()):
+//
+// add <id> <spec> <task> [option...]  followed by the request of every run;
+// cancel <id>
+// list                                one line per schedule.
+//
+public class ScheduleTask implements Task
+{
+    public final static String NAME = AdmindUtil.SCHEDULE_TASK;
+
+    private Scheduler scheduler;
+    private InputStream in;
+    private OutputStream out;
+    private OutputStream err;
+
+    public ScheduleTask (Scheduler scheduler, InputStream in, OutputStream out, OutputStream err,
+                         String name, String... options)
+    {
+        this.scheduler = scheduler;
+        this.in = in;
+        this.out = out;
+        this.err = err;
+    }
+
+    private boolean error (String message)
+        throws IOException
+    {
+        err.write ((message + "\n").getBytes (StandardCharsets.UTF_8));
+        return (false);
+    }
+
+    @Override // Task
+    public boolean run ()
+        throws Exception
+    {
+        String[] args = AdmindUtil.decodeArgs (in);
+        String command = (args.length == 0)? "": args [0];
+
+        if (command.equals ("add") && args.length >= 4)
+        {
+            ByteArrayOutputStream request = new ByteArrayOutputStream ();
+            byte[] buffer = new byte [8192];
+
+            for (int count; (count = in.read (buffer)) != -1; request.write (buffer, 0, count));
+
+            try
+            {
+                Scheduler.Schedule schedule = scheduler.add (args [1], args [2], args [3],
+                    Arrays.copyOfRange (args, 4, args.length), request.toByteArray ());
+                out.write ((schedule + "\n").getBytes (StandardCharsets.UTF_8));
+                return (true);
+            }
+            catch (IllegalArgumentException e)
+            {
+                return (error (e.getMessage ()));
+            }
+        }
+        else if (command.equals ("cancel") && args.length == 2)
+        {
+            return (scheduler.cancel (args [1])? true: error ("Schedule '" + args [1] + "' not found"));
+        }
+        else if (command.equals ("list") && args.length == 1)
+        {
+            for (Scheduler.Schedule schedule: scheduler.getSchedules ())
+            {
+                out.write ((schedule + "\n").getBytes (StandardCharsets.UTF_8));
+            }
+            return (true);
+        }
+        return (error ("Usage: add <id> <spec> <task> [option...] | cancel <id> | list"));
+    }
+}
+
+// EOF
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind.builtin;
+
+import org.lucidj.admind.StartupTimer;
+import org.lucidj.api.admind.Task;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Bundle startup report, one 'key=value' set per line:
+//
+// framework  when the framework reached its beginning start level, and
+//            how many bundle starts came after it (runtime_starts);
+// bundle     every startup activation seen, slowest first (activation_us=-1
+//            if the bundle never got to STARTED), restarts counts the later
+//            starts of the same bundle, they are never timed;
+// level      per start level, the sum of the activations and the span
+//            from the first STARTING to the last STARTED;
+// critical   start levels are barriers, so the startup can't be shorter
+//            than the sum of the level spans. Each level lists its span
+//            and the slowest bundle, the one to look at first.
+//
+// All times are measured by StartupTimer, *_ms are since the JVM started.
+//
+public class StartupTask implements Task
+{
+    public final static String NAME = "startup";
+
+    private StartupTimer startup_timer;
+    private InputStream in;
+    private OutputStream out;
+    private OutputStream err;
+
+    public StartupTask (StartupTimer startup_timer, InputStream in, OutputStream out, OutputStream err,
+                        String name, String... options)
+    {
+        this.startup_timer = startup_timer;
+        this.in = in;
+        this.out = out;
+        this.err = err;
+    }
+
+    private static long micros (long nanos)
+    {
+        return ((nanos < 0)? -1: nanos / 1000);
+    }
+
+    @Override // Task
+    public boolean run ()
+        throws Exception
+    {
+        PrintWriter writer = new PrintWriter (new OutputStreamWriter (out, StandardCharsets.UTF_8));
+        List<StartupTimer.Activation> activations = startup_timer.getActivations ();
+        Map<Integer, Level> levels = new TreeMap<> ();
+
+        writer.println ("framework started_ms=" + startup_timer.getFrameworkStarted ()
+            + " observed=" + activations.size () + " unobserved=" + startup_timer.getUnobserved ()
+            + " runtime_starts=" + startup_timer.getRuntimeStarts ());
+
+        for (StartupTimer.Activation activation: activations)
+        {
+            writer.println ("bundle id=" + activation.getBundleId ()
+                + " level=" + activation.getStartLevel ()
+                + " activation_us=" + micros (activation.getActivationNanos ())
+                + " started_ms=" + activation.getStartedMillis ()
+                + " restarts=" + activation.getRestarts ()
+                + " name=" + activation.getName ());
+
+            if (activation.isComplete ())
+            {
+                Level level = levels.get (activation.getStartLevel ());
+
+                if (level == null)
+                {
+                    levels.put (activation.getStartLevel (), level = new Level ());
+                }
+                level.add (activation);
+            }
+        }
+
+        long critical_nanos = 0;
+
+        for (Map.Entry<Integer, Level> entry: levels.entrySet ())
+        {
+            Level level = entry.getValue ();
+            writer.println ("level level=" + entry.getKey ()
+                + " bundles=" + level.bundles
+                + " activation_us=" + micros (level.activation_nanos)
+                + " span_us=" + micros (level.span ()));
+        }
+
+        for (Map.Entry<Integer, Level> entry: levels.entrySet ())
+        {
+            Level level = entry.getValue ();
+            critical_nanos += level.span ();
+            writer.println ("critical level=" + entry.getKey ()
+                + " span_us=" + micros (level.span ())
+                + " slowest_id=" + level.slowest.getBundleId ()
+                + " slowest_us=" + micros (level.slowest.getActivationNanos ())
+                + " name=" + level.slowest.getName ());
+        }
+        writer.println ("critical total_us=" + micros (critical_nanos));
+        writer.flush ();
+        return (true);
+    }
+
+    static class Level
+    {
+        private int bundles;
+        private long activation_nanos;
+        private long first_starting;
+        private long last_started;
+        private StartupTimer.Activation slowest;
+
+        void add (StartupTimer.Activation activation)
+        {
+            // nanoTime() values only compare by difference, no value is special
+            boolean first = (bundles++ == 0);
+            activation_nanos += activation.getActivationNanos ();
+
+            if (first || activation.getStartingNanos () - first_starting < 0)
+            {
+                first_starting = activation.getStartingNanos ();
+            }
+
+            if (first || activation.getStartedNanos () - last_started > 0)
+            {
+                last_started = activation.getStartedNanos ();
+            }
+
+            // Activations come slowest first
+            if (slowest == null)
+            {
+                slowest = activation;
+            }
+        }
+
+        long span ()
+        {
+            return (last_started - first_starting);
+        }
+    }
+}
+
+// EOF
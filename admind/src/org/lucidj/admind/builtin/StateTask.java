@@ -0,0 +1,110 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind.builtin;
+
+import org.lucidj.admind.FrameworkState;
+import org.lucidj.api.admind.Task;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Bundles and services, incrementally. The request holds '<epoch> <version>'
+// from the previous answer (or nothing on the first call), the answer is
+// either:
+//
+//   delta epoch=<epoch> version=<version> since=<version>
+//   <changes, in order, to apply over the previous state>
+//
+// or, when there's no previous state or it's too old for the change ring:
+//
+//   snapshot epoch=<epoch> version=<version>
+//   <every bundle and service>
+//
+// See FrameworkState for the line formats.
+//
+public class StateTask implements Task
+{
+    public final static String NAME = "state";
+
+    private final static int MAX_REQUEST = 64;
+
+    private FrameworkState framework_state;
+    private InputStream in;
+    private OutputStream out;
+    private OutputStream err;
+
+    public StateTask (FrameworkState framework_state, InputStream in, OutputStream out, OutputStream err,
+                      String name, String... options)
+    {
+        this.framework_state = framework_state;
+        this.in = in;
+        this.out = out;
+        this.err = err;
+    }
+
+    @Override // Task
+    public boolean run ()
+        throws Exception
+    {
+        // '<epoch> <version>' is short, anything longer is no previous state
+        // and we don't read any further. One extra byte tells it's longer.
+        byte[] request = new byte [MAX_REQUEST + 1];
+        int length = 0;
+
+        for (int count; length < request.length
+            && (count = in.read (request, length, request.length - length)) != -1; length += count);
+
+        String[] last_seen = (length > MAX_REQUEST)? new String [0]:
+            new String (request, 0, length, StandardCharsets.UTF_8).trim ().split ("\\s+");
+        String epoch = framework_state.getEpoch ();
+        List<String> lines = new ArrayList<> ();
+        long version = -1;
+        long since = -1;
+
+        if (last_seen.length == 2 && last_seen [1].matches ("\\d{1,18}"))
+        {
+            since = Long.parseLong (last_seen [1]);
+            version = framework_state.getChanges (last_seen [0], since, lines);
+        }
+
+        PrintWriter writer = new PrintWriter (new OutputStreamWriter (out, StandardCharsets.UTF_8));
+
+        if (version == -1)
+        {
+            version = framework_state.getSnapshot (lines);
+            writer.println ("snapshot epoch=" + epoch + " version=" + version);
+        }
+        else
+        {
+            writer.println ("delta epoch=" + epoch + " version=" + version + " since=" + since);
+        }
+
+        for (String line: lines)
+        {
+            writer.println (line);
+        }
+        writer.flush ();
+        return (true);
+    }
+}
+
+// EOF
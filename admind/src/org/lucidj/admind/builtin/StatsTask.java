@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind.builtin;
+
+import org.lucidj.admind.LoadMonitor;
+import org.lucidj.admind.TaskStats;
+import org.lucidj.admind.Watchdog;
+import org.lucidj.api.admind.Task;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Daemon stats, one 'key=value' set per line: the current load figures,
+// the tasks interrupted by the watchdog, then the totals of every task name
+// that ran since AdminD started.
+//
+public class StatsTask implements Task
+{
+    public final static String NAME = "stats";
+
+    private LoadMonitor load_monitor;
+    private TaskStats task_stats;
+    private Watchdog watchdog;
+    private InputStream in;
+    private OutputStream out;
+    private OutputStream err;
+
+    public StatsTask (LoadMonitor load_monitor, TaskStats task_stats, Watchdog watchdog,
+                      InputStream in, OutputStream out, OutputStream err, String name, String... options)
+    {
+        this.load_monitor = load_monitor;
+        this.task_stats = task_stats;
+        this.watchdog = watchdog;
+        this.in = in;
+        this.out = out;
+        this.err = err;
+    }
+
+    @Override // Task
+    public boolean run ()
+        throws Exception
+    {
+        PrintWriter writer = new PrintWriter (new OutputStreamWriter (out, StandardCharsets.UTF_8));
+        Map<Object, Object> load = new TreeMap<Object, Object> (load_monitor.snapshot ());
+        StringBuilder sb = new StringBuilder ("load");
+
+        for (Map.Entry<Object, Object> figure: load.entrySet ())
+        {
+            sb.append (' ').append (figure.getKey ()).append ('=').append (figure.getValue ());
+        }
+        writer.println (sb);
+
+        if (watchdog != null)
+        {
+            writer.println ("watchdog expired=" + watchdog.getExpired ());
+        }
+
+        for (Map.Entry<String, TaskStats.Totals> totals: task_stats.getTotals ().entrySet ())
+        {
+            writer.println ("task " + totals.getKey () + " " + totals.getValue ());
+        }
+        writer.flush ();
+        return (true);
+    }
+}
+
+// EOF
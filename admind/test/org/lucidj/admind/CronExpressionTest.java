@@ -0,0 +1,144 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.lucidj.admind;
+
+import java.time.OffsetDateTime;
+import java.util.TimeZone;
+
+// CronExpression.next() on fixed dates: steps and ranges, the day-of-month
+// or day-of-week rule and both DST changes. Runs on America/New_York, where
+// 2026-03-08 02:00 jumps to 03:00 and 2026-11-01 02:00 goes back to 01:00.
+// Usage:
+//
+//     java -cp <classes> org.lucidj.admind.CronExpressionTest
+//
+public class CronExpressionTest
+{
+    private static int failures;
+
+    private static long at (String offset_date_time)
+    {
+        return (OffsetDateTime.parse (offset_date_time).toInstant ().toEpochMilli ());
+    }
+
+    private static void check (String expression, String after, String expected)
+    {
+        long next = new CronExpression (expression).next (at (after));
+        long wanted = (expected == null)? -1: at (expected);
+
+        if (next != wanted)
+        {
+            System.err.println ("CronExpressionTest FAILED: '" + expression + "' after " + after
+                + " gave " + ((next == -1)? "-1": java.time.Instant.ofEpochMilli (next)) + ", expected " + expected);
+            failures++;
+        }
+    }
+
+    private static void check_invalid (String expression)
+    {
+        try
+        {
+            new CronExpression (expression);
+            System.err.println ("CronExpressionTest FAILED: '" + expression + "' was accepted");
+            failures++;
+        }
+        catch (IllegalArgumentException expected) {};
+    }
+
+    private static void test_steps ()
+    {
+        check ("*/15 * * * *", "2026-06-10T10:07-04:00", "2026-06-10T10:15-04:00");
+        check ("5/20 * * * *", "2026-06-10T10:30-04:00", "2026-06-10T10:45-04:00");
+        check ("0 */6 * * *", "2026-06-10T07:00-04:00", "2026-06-10T12:00-04:00");
+        check ("0-10/5 9 * * *", "2026-06-10T09:05-04:00", "2026-06-10T09:10-04:00");
+        check ("0-10/5 9 * * *", "2026-06-10T09:10-04:00", "2026-06-11T09:00-04:00");
+        check ("0 0 1-31/10 * *", "2026-06-10T10:07-04:00", "2026-06-11T00:00-04:00");
+        check ("0 0 1 */5 *", "2026-02-10T00:00-05:00", "2026-06-01T00:00-04:00");
+        check ("0 0 30 2 *", "2026-01-01T00:00-05:00", null);
+    }
+
+    private static void test_days ()
+    {
+        // Both restricted: the 13th or any Friday
+        check ("0 0 13 * 5", "2026-02-01T00:00-05:00", "2026-02-06T00:00-05:00");
+        check ("0 0 13 * 5", "2026-02-06T00:00-05:00", "2026-02-13T00:00-05:00");
+        check ("0 0 13 * 1", "2026-02-07T00:00-05:00", "2026-02-09T00:00-05:00");
+        check ("0 0 13 * 1", "2026-02-09T00:00-05:00", "2026-02-13T00:00-05:00");
+
+        // A day starting with '*' is not a restriction, both must match
+        check ("0 0 */10 * 1", "2026-02-01T00:00-05:00", "2026-05-11T00:00-04:00");
+        check ("0 0 13 * *", "2026-02-01T00:00-05:00", "2026-02-13T00:00-05:00");
+        check ("0 0 * * 5", "2026-02-07T00:00-05:00", "2026-02-13T00:00-05:00");
+
+        // Sunday is both 0 and 7
+        check ("0 0 * * 0", "2026-02-02T00:00-05:00", "2026-02-08T00:00-05:00");
+        check ("0 0 * * 7", "2026-02-02T00:00-05:00", "2026-02-08T00:00-05:00");
+    }
+
+    private static void test_dst ()
+    {
+        // Spring forward: a fixed time in the gap fires right after it, once
+        check ("30 2 * * *", "2026-03-08T01:00-05:00", "2026-03-08T03:00-04:00");
+        check ("30 2 * * *", "2026-03-08T03:00-04:00", "2026-03-09T02:30-04:00");
+        check ("0 3 * * *", "2026-03-08T01:00-05:00", "2026-03-08T03:00-04:00");
+
+        // Wildcards follow the real time, the gap minutes just don't exist
+        check ("*/30 * * * *", "2026-03-08T01:30-05:00", "2026-03-08T03:00-04:00");
+        check ("15 * * * *", "2026-03-08T01:15-05:00", "2026-03-08T03:15-04:00");
+
+        // Fall back: a fixed time fires on the first pass only
+        check ("30 1 * * *", "2026-11-01T00:00-04:00", "2026-11-01T01:30-04:00");
+        check ("30 1 * * *", "2026-11-01T01:30-04:00", "2026-11-02T01:30-05:00");
+
+        // Wildcards run through the repeated hour
+        check ("*/30 * * * *", "2026-11-01T01:30-04:00", "2026-11-01T01:00-05:00");
+        check ("*/30 * * * *", "2026-11-01T01:00-05:00", "2026-11-01T01:30-05:00");
+    }
+
+    private static void test_invalid ()
+    {
+        check_invalid ("* * * *");
+        check_invalid ("* * * * * *");
+        check_invalid ("60 * * * *");
+        check_invalid ("* 24 * * *");
+        check_invalid ("* * 0 * *");
+        check_invalid ("* * * 13 *");
+        check_invalid ("* * * * 8");
+        check_invalid ("*/0 * * * *");
+        check_invalid ("5-1 * * * *");
+        check_invalid ("a * * * *");
+    }
+
+    public static void main (String[] args)
+    {
+        TimeZone.setDefault (TimeZone.getTimeZone ("America/New_York"));
+
+        test_steps ();
+        test_days ();
+        test_dst ();
+        test_invalid ();
+
+        if (failures != 0)
+        {
+            System.exit (1);
+        }
+        System.out.println ("CronExpressionTest: passed");
+    }
+}
+
+// EOF
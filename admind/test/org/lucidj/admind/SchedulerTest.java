@@ -0,0 +1,250 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.lucidj.admind;
+
+import org.lucidj.admind.shared.AdmindUtil;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+// The Scheduler.Schedule state machine: launches, skipped turns, failures,
+// the delay re-arm and cancellation. The timing wheel is never started, the
+// test fires the schedules itself and completes the launched runs when it
+// wants, so nothing depends on the wheel timing. Usage:
+//
+//     java -cp <classes> org.lucidj.admind.SchedulerTest
+//
+public class SchedulerTest
+{
+    private static int failures;
+
+    private static void check (boolean condition, String message)
+    {
+        if (!condition)
+        {
+            System.err.println ("SchedulerTest FAILED: " + message);
+            failures++;
+        }
+    }
+
+    // Launches nothing, only keeps the runs for the test to complete
+    static class HeldLauncher implements Scheduler.Launcher
+    {
+        private final String result_dir;
+        private final List<Run> runs = new ArrayList<> ();
+
+        HeldLauncher (String result_dir)
+        {
+            this.result_dir = result_dir;
+        }
+
+        @Override // Scheduler.Launcher
+        public void launch (TaskIdentifier task_id, byte[] request, OutputStream out, OutputStream err,
+                            TaskThread.Completion completion)
+        {
+            runs.add (new Run (out, err, completion));
+        }
+
+        @Override // Scheduler.Launcher
+        public String getResultDir ()
+        {
+            return (result_dir);
+        }
+    }
+
+    static class Run
+    {
+        private final OutputStream out;
+        private final OutputStream err;
+        private final TaskThread.Completion completion;
+
+        Run (OutputStream out, OutputStream err, TaskThread.Completion completion)
+        {
+            this.out = out;
+            this.err = err;
+            this.completion = completion;
+        }
+
+        void complete (String output, boolean failed)
+            throws IOException
+        {
+            (failed? err: out).write (output.getBytes (StandardCharsets.UTF_8));
+            completion.completed (failed);
+        }
+    }
+
+    // The 'key=value' fields of Schedule.toString()
+    private static long field (Scheduler.Schedule schedule, String key)
+    {
+        for (String field: schedule.toString ().split (" "))
+        {
+            if (field.startsWith (key + "="))
+            {
+                return (Long.parseLong (field.substring (key.length () + 1)));
+            }
+        }
+        throw (new IllegalStateException ("No " + key + " on " + schedule));
+    }
+
+    private static Properties result_header (String dir, String id)
+        throws IOException
+    {
+        byte[] result = Files.readAllBytes (AdmindUtil.scheduleFile (dir, id).toPath ());
+        return (AdmindUtil.getScheduleHeader (new String (result, StandardCharsets.UTF_8)));
+    }
+
+    private static void test_rate (Scheduler scheduler, HeldLauncher launcher)
+        throws Exception
+    {
+        Scheduler.Schedule schedule = scheduler.add ("rate", "rate:100", "echo", new String [0], new byte [0]);
+
+        // A run still going makes the next turn a skip
+        schedule.run ();
+        schedule.run ();
+        check (launcher.runs.size () == 1, "rate: " + launcher.runs.size () + " launches, expected 1");
+        check (field (schedule, "skipped") == 1, "rate: overlapping turn not skipped: " + schedule);
+
+        launcher.runs.get (0).complete ("tick", false);
+        Properties header = result_header (launcher.getResultDir (), "rate");
+        check (field (schedule, "runs") == 1 && schedule.toString ().contains (" running=false "), "rate: " + schedule);
+        check ("ok".equals (header.getProperty ("status")), "rate: status " + header);
+        check ("1".equals (header.getProperty ("skipped")), "rate: skipped on the result " + header);
+
+        // Once the run is done the next turn launches again
+        schedule.run ();
+        check (launcher.runs.size () == 2, "rate: the next turn did not launch once");
+        launcher.runs.get (1).complete ("tick", false);
+
+        // Turns missed during a pause are skipped, not fired back to back. The clock
+        // is ours here: called 550ms after the planned turn, the 5 turns due in the
+        // meantime are skipped and the next one keeps the pace, 50ms from now.
+        long skipped = field (schedule, "skipped");
+        long planned_ms = field (schedule, "next_ms");
+        long delay_ms = schedule.next_delay (planned_ms + 550);
+        check (field (schedule, "skipped") - skipped == 5, "rate: missed turns not counted: " + schedule);
+        check (delay_ms == 50 && field (schedule, "next_ms") == planned_ms + 600,
+            "rate: next turn in " + delay_ms + "ms: " + schedule);
+        scheduler.cancel ("rate");
+        launcher.runs.clear ();
+    }
+
+    private static void test_failure (Scheduler scheduler, HeldLauncher launcher)
+        throws Exception
+    {
+        Scheduler.Schedule schedule = scheduler.add ("fail", "rate:1000", "echo", new String [0], new byte [0]);
+
+        // The task outcome decides, not whether something was written on err
+        schedule.run ();
+        launcher.runs.get (0).completion.completed (true);
+        check ("failed".equals (result_header (launcher.getResultDir (), "fail").getProperty ("status")),
+            "failure: silent failure reported as ok");
+        check (field (schedule, "failures") == 1, "failure: not counted " + schedule);
+
+        schedule.run ();
+        launcher.runs.get (1).complete ("all good", false);
+        check ("ok".equals (result_header (launcher.getResultDir (), "fail").getProperty ("status")),
+            "failure: success reported as failed");
+        check (field (schedule, "failures") == 1 && field (schedule, "runs") == 2, "failure: " + schedule);
+        scheduler.cancel ("fail");
+        launcher.runs.clear ();
+    }
+
+    private static void test_delay (Scheduler scheduler, HeldLauncher launcher)
+        throws Exception
+    {
+        Scheduler.Schedule schedule = scheduler.add ("delay", "delay:1000", "echo", new String [0], new byte [0]);
+
+        // The next turn counts from the end of the run, which happens somewhere
+        // between before_ms and after_ms and well after the run started
+        schedule.run ();
+        Thread.sleep (200);
+        long before_ms = System.currentTimeMillis ();
+        launcher.runs.get (0).complete ("done", false);
+        long after_ms = System.currentTimeMillis ();
+        long next_ms = field (schedule, "next_ms");
+        check (next_ms >= before_ms + 1000 && next_ms <= after_ms + 1000,
+            "delay: next_ms " + (next_ms - before_ms) + "ms after the end of the run");
+
+        // Always the full period, however late we are
+        check (schedule.next_delay (next_ms + 5000) == 1000 && field (schedule, "next_ms") == next_ms + 6000,
+            "delay: " + schedule);
+        scheduler.cancel ("delay");
+        launcher.runs.clear ();
+    }
+
+    private static void test_cancel (Scheduler scheduler, HeldLauncher launcher)
+        throws Exception
+    {
+        Scheduler.Schedule first = scheduler.add ("cancel", "rate:100", "echo", new String [0], new byte [0]);
+
+        // Replacing a schedule cancels the previous one
+        Scheduler.Schedule second = scheduler.add ("cancel", "rate:100", "echo", new String [0], new byte [0]);
+        first.run ();
+        check (launcher.runs.isEmpty (), "cancel: replaced schedule still launches");
+        check (scheduler.getSchedules ().size () == 1, "cancel: " + scheduler.getSchedules ());
+
+        check (scheduler.cancel ("cancel"), "cancel: schedule not found");
+        check (!scheduler.cancel ("cancel"), "cancel: cancelled twice");
+        second.run ();
+        check (launcher.runs.isEmpty (), "cancel: cancelled schedule still launches");
+        check (scheduler.getSchedules ().isEmpty (), "cancel: " + scheduler.getSchedules ());
+    }
+
+    private static void check_rejected (Scheduler scheduler, String id, String spec, String task)
+    {
+        try
+        {
+            scheduler.add (id, spec, task, new String [0], new byte [0]);
+            check (false, "'" + id + "' '" + spec + "' '" + task + "' was accepted");
+        }
+        catch (IllegalArgumentException expected) {};
+    }
+
+    public static void main (String[] args)
+        throws Exception
+    {
+        String dir = Files.createTempDirectory ("scheduler-test").toString ();
+        HeldLauncher launcher = new HeldLauncher (dir);
+        Scheduler scheduler = new Scheduler (new TimingWheel (1000, 64), launcher);
+
+        test_rate (scheduler, launcher);
+        test_failure (scheduler, launcher);
+        test_delay (scheduler, launcher);
+        test_cancel (scheduler, launcher);
+
+        check_rejected (scheduler, "bad id", "rate:100", "echo");
+        check_rejected (scheduler, "spec", "every:100", "echo");
+        check_rejected (scheduler, "spec", "rate:0", "echo");
+        check_rejected (scheduler, "spec", "cron:* * *", "echo");
+        check_rejected (scheduler, "task", "rate:100", "no task");
+        check (scheduler.getSchedules ().isEmpty (), "rejected schedules were added");
+
+        if (failures != 0)
+        {
+            System.exit (1);
+        }
+        System.out.println ("SchedulerTest: passed");
+    }
+}
+
+// EOF
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind;
+
+import org.lucidj.admind.shared.AdmindUtil;
+import org.lucidj.admind.shared.TransactionFile;
+import org.lucidj.api.admind.Task;
+import org.lucidj.api.admind.TaskProvider;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Asserts a fixed syscall budget for the whole life of a request: the client
+// creating it, the server running it the way the watcher does and the client
+// reading the response and cleaning up. The test runs itself on a child JVM
+// under strace and counts only the syscalls touching the AdminD directory, so
+// class loading and the JVM own activity don't matter. Costs paid once in a
+// while (like the cached directory validation) are spread over the requests.
+//
+// Fails when strace is not available, unless explicitly skipped. Usage:
+//
+//     java -cp <classes> [-Dadmind.test.nostrace=skip] org.lucidj.admind.SyscallBudgetTest
+//
+public class SyscallBudgetTest
+{
+    private final static String CHILD_OPTION = "--child";
+    private final static String NOSTRACE_PROPERTY = "admind.test.nostrace";
+    private final static String TASK_NAME = "budget";
+    private final static String MARK_PREFIX = "budget-mark-";
+    private final static String MARK_END = "end";
+    private final static int WARMUP_REQUESTS = 50;
+    private final static int REQUESTS = 200;
+
+    // Syscalls per request on the AdminD directory, client and server together
+    private final static Map<String, Integer> BUDGETS = new LinkedHashMap<> ();
+
+    static
+    {
+        // .run: create+write+close, stat (watcher), open .out/.tmp/.run, read x2, write,
+        // close x3, rename, stat x2 (status), open+fstat+read x2+close, unlink x3
+        BUDGETS.put ("run", 24);
+
+        // .txn: create+pwrite x2+close, stat (watcher), open+pread+pwrite (claim), pread,
+        // pwrite x3 (response, header, state), close, then the client open+pread+close
+        // (status), open+pread x2+close (response) and unlink
+        BUDGETS.put ("txn", 21);
+    }
+
+    private static void fail (String message)
+    {
+        System.err.println ("SyscallBudgetTest FAILED: " + message);
+        System.exit (1);
+    }
+
+    //=================================================================================================================
+    // CHILD JVM, TRACED
+    //=================================================================================================================
+
+    static class CopyProvider implements TaskProvider
+    {
+        @Override // TaskProvider
+        public Task createTask (final InputStream in, final OutputStream out, OutputStream err,
+                                String name, String... options)
+        {
+            return (new Task ()
+            {
+                @Override // Task
+                public boolean run ()
+                    throws Exception
+                {
+                    byte[] buffer = new byte [8192];
+
+                    for (int count; (count = in.read (buffer)) != -1; out.write (buffer, 0, count));
+                    return (true);
+                }
+            });
+        }
+    }
+
+    private static void mark (String dir, String phase)
+    {
+        // A stat() on a file that never exists, it delimits the phases on the trace
+        new File (dir, MARK_PREFIX + phase).exists ();
+    }
+
+    private static void run_request (ThreadGroup group, TaskProviderIndex.Entry entry,
+                                     TaskIdentifier task_id, boolean transaction, String data)
+        throws IOException
+    {
+        // Client side
+        String request = transaction?
+            AdmindUtil.asyncInvokeTransaction (TASK_NAME, data): AdmindUtil.asyncInvoke (TASK_NAME, data);
+
+        if (request == null)
+        {
+            fail ("unable to create request");
+        }
+
+        // Server side, the same steps of the watcher and TaskThread
+        File req_file = new File (request);
+        String file_name = req_file.getName ();
+
+        if (req_file.length () == 0 || !task_id.parse (file_name, file_name.lastIndexOf ('.')))
+        {
+            fail ("invalid request " + request);
+        }
+
+        TaskThread task_thread;
+
+        if (transaction)
+        {
+            TransactionFile txn = TransactionFile.open (req_file);
+
+            if (!txn.claim ())
+            {
+                fail ("unable to claim " + request);
+            }
+            task_thread = TaskThread.newInstance (group, entry, task_id, req_file, txn, null);
+        }
+        else
+        {
+            task_thread = TaskThread.newInstance (group, entry, task_id, req_file, (StorageGuard)null, null);
+        }
+
+        if (task_thread == null)
+        {
+            fail ("unable to create task for " + request);
+        }
+
+        // Runs on this thread, the thread start costs no file syscalls anyway
+        task_thread.run ();
+
+        // Client side again
+        if (AdmindUtil.asyncStatus (request) != AdmindUtil.ASYNC_READY)
+        {
+            fail ("request not ready: " + request);
+        }
+
+        String response = AdmindUtil.asyncResponse (request);
+
+        if (response == null || !response.equals (data))
+        {
+            fail ("unexpected response for " + request + ": " + response);
+        }
+    }
+
+    private static void run_child ()
+        throws IOException
+    {
+        String dir = AdmindUtil.setupAdmindDir (true);
+        ThreadGroup group = new ThreadGroup (SyscallBudgetTest.class.getSimpleName ());
+        TaskProviderIndex.Entry entry = new TaskProviderIndex.Entry (TASK_NAME, new CopyProvider (), 0, 0);
+        TaskIdentifier task_id = new TaskIdentifier ();
+        String data = "The quick brown fox jumps over the lazy dog";
+
+        for (String phase: BUDGETS.keySet ())
+        {
+            boolean transaction = phase.equals ("txn");
+
+            for (int i = 0; i < WARMUP_REQUESTS; i++)
+            {
+                run_request (group, entry, task_id, transaction, data);
+            }
+
+            mark (dir, phase);
+
+            for (int i = 0; i < REQUESTS; i++)
+            {
+                run_request (group, entry, task_id, transaction, data);
+            }
+            mark (dir, MARK_END);
+        }
+    }
+
+    //=================================================================================================================
+    // PARENT JVM, TRACING
+    //=================================================================================================================
+
+    private static String find_executable (String name)
+    {
+        String path = System.getenv ("PATH");
+
+        if (path == null)
+        {
+            return (null);
+        }
+
+        for (String dir: path.split (File.pathSeparator))
+        {
+            File executable = new File (dir, name);
+
+            if (executable.isFile () && executable.canExecute ())
+            {
+                return (executable.getPath ());
+            }
+        }
+        return (null);
+    }
+
+    private static Map<String, Integer> count_syscalls (File trace, String dir)
+        throws IOException
+    {
+        Map<String, Integer> counts = new LinkedHashMap<> ();
+        String phase = null;
+
+        try (BufferedReader reader = new BufferedReader (new FileReader (trace)))
+        {
+            for (String line; (line = reader.readLine ()) != null;)
+            {
+                int mark = line.indexOf (MARK_PREFIX);
+
+                if (mark != -1)
+                {
+                    String name = line.substring (mark + MARK_PREFIX.length ()).split ("\"", 2)[0];
+                    phase = name.equals (MARK_END)? null: name;
+                    continue;
+                }
+
+                // Resumed lines belong to a syscall already counted (strace -f)
+                if (phase != null && line.contains (dir) && !line.contains ("resumed>"))
+                {
+                    Integer count = counts.get (phase);
+                    counts.put (phase, (count == null)? 1: count + 1);
+                }
+            }
+        }
+        return (counts);
+    }
+
+    private static void run_parent ()
+        throws Exception
+    {
+        String strace = find_executable ("strace");
+
+        if (strace == null)
+        {
+            if ("skip".equals (System.getProperty (NOSTRACE_PROPERTY)))
+            {
+                System.out.println ("SyscallBudgetTest: strace not found, skipped");
+                return;
+            }
+            fail ("strace not found, set -D" + NOSTRACE_PROPERTY + "=skip to skip the test");
+        }
+
+        // A private tmp dir for the child, so the AdminD dir is ours alone
+        File tmp_dir = Files.createTempDirectory ("admind-budget").toRealPath ().toFile ();
+        File trace = File.createTempFile ("admind-budget", ".strace");
+
+        try
+        {
+            List<String> command = new ArrayList<> (Arrays.asList (
+                strace, "-f", "-qq", "-y", "-e", "trace=file,desc", "-o", trace.getPath (),
+                System.getProperty ("java.home") + File.separator + "bin" + File.separator + "java",
+                "-Djava.io.tmpdir=" + tmp_dir.getPath (),
+                "-cp", System.getProperty ("java.class.path"),
+                SyscallBudgetTest.class.getName (), CHILD_OPTION));
+            Process child = new ProcessBuilder (command).inheritIO ().start ();
+
+            if (child.waitFor () != 0)
+            {
+                fail ("child JVM exited with " + child.exitValue ());
+            }
+
+            Map<String, Integer> counts = count_syscalls (trace, tmp_dir.getPath ());
+            boolean passed = true;
+
+            for (Map.Entry<String, Integer> budget: BUDGETS.entrySet ())
+            {
+                Integer count = counts.get (budget.getKey ());
+                double per_request = (count == null)? 0: (double)count / REQUESTS;
+                boolean within = count != null && per_request <= budget.getValue ();
+
+                System.out.printf ("SyscallBudgetTest: %s %.2f syscalls/request, budget %d%s%n",
+                    budget.getKey (), per_request, budget.getValue (), within? "": " EXCEEDED");
+                passed &= within;
+            }
+
+            if (!passed)
+            {
+                fail ("syscall budget exceeded, see " + trace);
+            }
+            trace.delete ();
+        }
+        finally
+        {
+            AdmindUtil.deleteDirTree (tmp_dir.getPath (), false);
+        }
+    }
+
+    public static void main (String[] args)
+        throws Exception
+    {
+        if (args.length == 1 && args [0].equals (CHILD_OPTION))
+        {
+            run_child ();
+        }
+        else
+        {
+            run_parent ();
+        }
+    }
+}
+
+// EOF
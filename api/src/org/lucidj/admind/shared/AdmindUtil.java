@@ -18,15 +18,21 @@ package org.lucidj.admind.shared;
 
 import java.io.*;
 import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
 import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributes;
 import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.HashSet;
-import java.util.List;
-import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
 import java.util.Set;
@@ -34,16 +40,58 @@ import java.util.Set;
 public class AdmindUtil
 {
     private final static String BASE_DIRECTORY = "jvm_admind_";
+    private final static String QUEUE_DIRECTORY = "queue_";
+    private final static String QUEUE_SUFFIX = ".new";
     private final static String SERVER_NAME_PROPERTY = "server.name";
-    private final static String SERVER_JVMID_PROPERTY = "server.jvmid";
+    public final static String SERVER_JVMID_PROPERTY = "server.jvmid";
 
     private final static int JVM_LINGER_TIME_MS = 5000;
     private final static int DEFAULT_WAIT_TIMEOUT_MS = 15000;
+    private final static int DIR_VALIDATION_MS = 1000;
 
     public final static String REQUEST_SUFFIX = ".run";
     public final static String RESPONSE_SUFFIX = ".out";
     public final static String STATUS_SUFFIX = ".err";
     public final static String TEMP_SUFFIX = ".tmp";
+    public final static String TRANSACTION_SUFFIX = ".txn";
+    public final static String RING_SUFFIX = ".ring";
+
+    public final static String PIPELINE_TASK = "pipeline";
+
+    // Opt-in per request: the response ends with a line like
+    // "\n#admind-stats wall_us=1234 cpu_us=1000 allocated_bytes=56789"
+    public final static String STATS_OPTION = "_stats";
+    public final static String STATS_TRAILER = "\n#admind-stats ";
+
+    // Per request deadline, like "_deadline30000" (see deadlineOption())
+    public final static String DEADLINE_OPTION = "_deadline";
+
+    // Subscription, the task output goes into a RingFile (see asyncSubscribe())
+    public final static String SUBSCRIBE_OPTION = "_subscribe";
+
+    // Self-probe request (see Admind.probe()), kept out of the task stats,
+    // the published task latency and the traffic recordings
+    public final static String PROBE_OPTION = "_probe";
+
+    // Server-side schedules (see scheduleInvoke()), the latest result of each goes to
+    // schedule_<id>.result: a "#admind-schedule id=... run=... status=ok|failed ..."
+    // line, then the response (or the errors when failed)
+    public final static String SCHEDULE_TASK = "schedule";
+    public final static String SCHEDULE_PREFIX = "schedule_";
+    public final static String SCHEDULE_SUFFIX = ".result";
+    public final static String SCHEDULE_HEADER = "#admind-schedule ";
+
+    // Server load descriptor, <server.name>.load next to <server.name>.properties
+    public final static String LOAD_SUFFIX = ".load";
+    public final static String LOAD_QUEUED = "load.queued";
+    public final static String LOAD_ACTIVE = "load.active";
+    public final static String LOAD_P99_US = "load.p99.us";
+    public final static String LOAD_COMPLETED = "load.completed";
+    public final static String PROBE_P50_US = "probe.p50.us";
+    public final static String PROBE_P99_US = "probe.p99.us";
+    public final static String PROBE_MAX_US = "probe.max.us";
+    public final static String PROBE_LAST_US = "probe.last.us";
+    public final static String PROBE_FAILURES = "probe.failures";
 
     public static int ASYNC_ERROR = 0;
     public static int ASYNC_PENDING = 1;
@@ -63,6 +111,24 @@ public class AdmindUtil
 
     private static Random random = new Random ();
 
+    // Owner-only permissions (u+rw[x],go-rwx), computed once and applied at creation time
+    private final static boolean posix_fs =
+        FileSystems.getDefault ().supportedFileAttributeViews ().contains ("posix");
+    private final static Set<PosixFilePermission> FILE_PERMISSIONS =
+        PosixFilePermissions.fromString ("rw-------");
+    private final static Set<PosixFilePermission> DIR_PERMISSIONS =
+        PosixFilePermissions.fromString ("rwx------");
+    private final static FileAttribute<?>[] FILE_ATTRIBUTES = posix_fs?
+        new FileAttribute<?>[] { PosixFilePermissions.asFileAttribute (FILE_PERMISSIONS) }: new FileAttribute<?>[0];
+    private final static FileAttribute<?>[] DIR_ATTRIBUTES = posix_fs?
+        new FileAttribute<?>[] { PosixFilePermissions.asFileAttribute (DIR_PERMISSIONS) }: new FileAttribute<?>[0];
+    private final static Set<StandardOpenOption> CREATE_OPTIONS =
+        EnumSet.of (StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+
+    private static volatile UserPrincipal current_user;
+    private static volatile String validated_dir;
+    private static volatile long validated_until;
+
     static
     {
         // Temp directory (hopefully tmpfs or other backed in RAM)
@@ -92,68 +158,135 @@ public class AdmindUtil
         default_server_name = System.getProperty (SERVER_NAME_PROPERTY, "server_" + System.getProperty ("user.name"));
     }
 
+    private static UserPrincipal current_user ()
+    {
+        if (current_user == null)
+        {
+            try
+            {
+                // Looked up once, comparing with the owner costs nothing afterwards
+                current_user = FileSystems.getDefault ().getUserPrincipalLookupService ()
+                    .lookupPrincipalByName (System.getProperty ("user.name"));
+            }
+            catch (IOException | UnsupportedOperationException ignore) {};
+        }
+        return (current_user);
+    }
+
     private static boolean is_valid_dir (String dir)
     {
-        File dir_file = new File (dir);
+        if (!posix_fs || current_user () == null)
+        {
+            File dir_file = new File (dir);
 
-        // Must be a directory with RWX access to the owner (us)
-        return (dir_file.isDirectory ()
-                && dir_file.canRead ()
-                && dir_file.canWrite ()
-                && dir_file.canExecute ());
+            // Must be a directory with RWX access to the owner (us)
+            return (dir_file.isDirectory ()
+                    && dir_file.canRead ()
+                    && dir_file.canWrite ()
+                    && dir_file.canExecute ());
+        }
+
+        try
+        {
+            // Owned by us with RWX for the owner, all from a single stat()
+            PosixFileAttributes attrs = Files.readAttributes (Paths.get (dir), PosixFileAttributes.class);
+            return (attrs.isDirectory () && attrs.permissions ().containsAll (DIR_PERMISSIONS)
+                    && attrs.owner ().equals (current_user ()));
+        }
+        catch (IOException e)
+        {
+            return (false);
+        }
     }
 
     public static String getAdmindDir ()
     {
+        String dir = admind_dir;
+        long now = System.currentTimeMillis ();
+
+        // The directory is validated at most once every DIR_VALIDATION_MS,
+        // so invoking tasks or polling the directory costs no extra syscalls
+        if (dir.equals (validated_dir) && now < validated_until)
+        {
+            return (dir);
+        }
+
         // Allows us to detect whether AdminD dir is already initialized
-        return (is_valid_dir (admind_dir)? admind_dir: null);
+        if (is_valid_dir (dir))
+        {
+            validated_until = now + DIR_VALIDATION_MS;
+            validated_dir = dir;
+            return (dir);
+        }
+        validated_dir = null;
+        return (null);
+    }
+
+    public static void invalidateAdmindDir ()
+    {
+        // Forces the next getAdmindDir() to check the directory again
+        validated_dir = null;
     }
 
     //=================================================================================================================
     // DIRECTORY CREATION
     //=================================================================================================================
 
-    private static void fix_permissions (File file_or_dir)
+    private static void fix_permissions (Path file_or_dir, boolean is_dir)
         throws IOException
     {
         // Test for modern systems
-        if (System.getProperty ("os.name", "ManchesterBaby").startsWith ("Windows"))
+        if (!posix_fs)
         {
             // TODO: FIX PERMISSIONS WINDOWS WAY
         }
         else // Default: Unix/Linux way
         {
             // Select permissions as usable only to owner (u+rw[x],go-rw[x])
-            Set<PosixFilePermission> perms = new HashSet<> ();
-            perms.add (PosixFilePermission.OWNER_READ);
-            perms.add (PosixFilePermission.OWNER_WRITE);
-
-            if (file_or_dir.isDirectory ())
-            {
-                // Directories need u+x also
-                perms.add (PosixFilePermission.OWNER_EXECUTE);
-            }
-            Files.setPosixFilePermissions (file_or_dir.toPath (), perms);
+            Files.setPosixFilePermissions (file_or_dir, is_dir? DIR_PERMISSIONS: FILE_PERMISSIONS);
         }
     }
 
     private static void mksane (String dir)
         throws IOException
     {
-        File fdir = new File (dir);
+        Path dir_path = Paths.get (dir);
 
-        // Check if the directory already exists...
-        if (!fdir.exists ())
+        try
         {
-            // ...and create it if not
-            if (!fdir.mkdir ())
+            // Create the directory already usable only to owner (u+rwx,go-rwx)
+            Files.createDirectory (dir_path, DIR_ATTRIBUTES);
+        }
+        catch (FileAlreadyExistsException e)
+        {
+            if (!Files.isDirectory (dir_path))
             {
                 throw (new IOException ("Error creating directory: " + dir));
             }
+
+            // Existing directory, set permissions as usable only to owner
+            fix_permissions (dir_path, true);
         }
+    }
+
+    public static Path createFile (File file)
+        throws IOException
+    {
+        // Atomic create-with-permissions, fails if the file already exists
+        return (Files.createFile (file.toPath (), FILE_ATTRIBUTES));
+    }
 
-        // Set directory permissions as usable only to owner (u+rwx,go-rwx)
-        fix_permissions (fdir);
+    public static OutputStream newOutputStream (File file)
+        throws IOException
+    {
+        // Atomic create-with-permissions and open on a single syscall
+        return (Channels.newOutputStream (Files.newByteChannel (file.toPath (), CREATE_OPTIONS, FILE_ATTRIBUTES)));
+    }
+
+    public static RingFile createRingFile (File file, long capacity)
+        throws IOException
+    {
+        return (RingFile.create (file, capacity, FILE_ATTRIBUTES));
     }
 
     public static String setupAdmindDir (boolean setupShutdownHook)
@@ -161,6 +294,7 @@ public class AdmindUtil
     {
         mksane (root_admind_dir);
         mksane (admind_dir);
+        invalidateAdmindDir ();
 
         // Double-check the availability of admind_dir
         if (!is_valid_dir (admind_dir))
@@ -170,17 +304,20 @@ public class AdmindUtil
 
         // Create the server data file with owner-only permissions
         File serverdata_file = new File (admind_dir, default_server_name + ".properties");
-        if (!serverdata_file.createNewFile ())
-        {
-            throw (new IOException ("Unable to create file: " + serverdata_file));
-        }
-        fix_permissions (serverdata_file);
 
         // Store system properties
         String comments = "Properties for " + jvm_id;
         System.setProperty (SERVER_NAME_PROPERTY, default_server_name);     // Make sure server.name is present
         System.setProperty (SERVER_JVMID_PROPERTY, jvm_id);                 // and also server.jvmid
-        System.getProperties ().store (new FileOutputStream (serverdata_file), comments);
+
+        try (OutputStream serverdata = newOutputStream (serverdata_file))
+        {
+            System.getProperties ().store (serverdata, comments);
+        }
+        catch (FileAlreadyExistsException e)
+        {
+            throw (new IOException ("Unable to create file: " + serverdata_file));
+        }
 
         if (setupShutdownHook && cleanup_thread_hook == null)
         {
@@ -263,6 +400,8 @@ public class AdmindUtil
     public static void cleanupAdmindDir ()
         throws IOException
     {
+        invalidateAdmindDir ();
+
         if (!is_valid_dir (admind_dir))
         {
             // The directory doesn't exists anyway
@@ -318,19 +457,69 @@ public class AdmindUtil
         return (initAdmindDir (null));
     }
 
-    public static String initAdmindDir (String server_name)
+    private static Properties load_server_properties (File jvm_dir, String server_name)
     {
-        if (server_name == null)
+        File serverdata_file = new File (jvm_dir, server_name + ".properties");
+
+        try
         {
-            server_name = default_server_name;
+            FileTime last_modified = Files.getLastModifiedTime (serverdata_file.toPath ());
+
+            if (last_modified.toMillis () + JVM_LINGER_TIME_MS < System.currentTimeMillis ())
+            {
+                // The JVM this server_properties file is referring has not touched the
+                // file for 5 seconds. Probably the JVM has gone and left admind adrift.
+                return (null);
+            }
+
+            Properties properties = new Properties ();
+
+            try (InputStream is = new FileInputStream (serverdata_file))
+            {
+                properties.load (is);
+            }
+            return (server_name.equals (properties.getProperty (SERVER_NAME_PROPERTY))? properties: null);
+        }
+        catch (IOException e)
+        {
+            return (null);
         }
+    }
+
+    private static Properties find_server_properties (File jvm_dir)
+    {
+        String[] file_list = jvm_dir.list ();
 
-        File user_jvms = new File (root_admind_dir);
-        File[] jvm_dir_list = user_jvms.listFiles ();
+        if (file_list != null)
+        {
+            for (String file_name: file_list)
+            {
+                // Other .properties may show up, the descriptor is the one
+                // whose server.name matches its own file name
+                if (file_name.endsWith (".properties"))
+                {
+                    String name = file_name.substring (0, file_name.length () - ".properties".length ());
+                    Properties properties = load_server_properties (jvm_dir, name);
+
+                    if (properties != null)
+                    {
+                        return (properties);
+                    }
+                }
+            }
+        }
+        return (null);
+    }
+
+    public static Map<String, Properties> findAdmindDirs (String server_name)
+    {
+        // Every live AdminD dir, optionally only for the given server name
+        Map<String, Properties> found = new LinkedHashMap<> ();
+        File[] jvm_dir_list = new File (root_admind_dir).listFiles ();
 
         if (jvm_dir_list == null)
         {
-            return (null);
+            return (found);
         }
 
         for (File jvm_dir: jvm_dir_list)
@@ -340,68 +529,275 @@ public class AdmindUtil
                 continue;
             }
 
-            File serverdata_file = new File (jvm_dir, server_name + ".properties");
-            server_properties = new Properties ();
+            Properties properties = (server_name != null)?
+                load_server_properties (jvm_dir, server_name): find_server_properties (jvm_dir);
 
-            try
+            if (properties != null && is_valid_dir (jvm_dir.getPath ()))
             {
-                FileTime last_modified = Files.getLastModifiedTime (Paths.get (serverdata_file.toURI ()));
+                found.put (jvm_dir.getPath (), properties);
+            }
+        }
+        return (found);
+    }
 
-                if (last_modified.toMillis () + JVM_LINGER_TIME_MS < System.currentTimeMillis ())
-                {
-                    // The JVM this server_properties file is referring has not touched the
-                    // file for 5 seconds. Probably the JVM has gone and left admind adrift.
-                    continue;
-                }
+    public static Map<String, Properties> findAdmindDirs ()
+    {
+        return (findAdmindDirs (null));
+    }
 
-                server_properties.load (new FileInputStream (serverdata_file));
-            }
-            catch (IOException ignore) {};
+    public static void writeServerLoad (String dir, Properties load)
+        throws IOException
+    {
+        Path load_path = Paths.get (dir, default_server_name + LOAD_SUFFIX);
+        Path new_path = Paths.get (dir, default_server_name + LOAD_SUFFIX + ".new");
 
-            if (server_name.equals (server_properties.getProperty (SERVER_NAME_PROPERTY)))
-            {
-                String test_dir = jvm_dir.getPath ();
+        // Readers must never see a half written file
+        Files.deleteIfExists (new_path);
 
-                if (is_valid_dir (test_dir))
-                {
-                    admind_dir = test_dir;
-                    return (admind_dir);
-                }
+        try (OutputStream os = newOutputStream (new_path.toFile ()))
+        {
+            load.store (os, null);
+        }
+        Files.move (new_path, load_path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static File scheduleFile (String dir, String id)
+    {
+        return (new File (dir, SCHEDULE_PREFIX + id + SCHEDULE_SUFFIX));
+    }
+
+    public static void writeScheduleResult (String dir, String id, String header, byte[] body)
+        throws IOException
+    {
+        Path result_path = scheduleFile (dir, id).toPath ();
+        Path new_path = Paths.get (result_path + ".new");
+
+        // Same as the load descriptor, replaced as a whole
+        Files.deleteIfExists (new_path);
+
+        try (OutputStream os = newOutputStream (new_path.toFile ()))
+        {
+            os.write ((SCHEDULE_HEADER + header + "\n").getBytes (StandardCharsets.UTF_8));
+            os.write (body);
+        }
+        Files.move (new_path, result_path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static Properties readServerLoad (String dir, String server_name)
+    {
+        File load_file = new File (dir, server_name + LOAD_SUFFIX);
+
+        try (InputStream is = new FileInputStream (load_file))
+        {
+            if (load_file.lastModified () + JVM_LINGER_TIME_MS < System.currentTimeMillis ())
+            {
+                // Stale figures are worse than none
+                return (null);
             }
+
+            Properties load = new Properties ();
+            load.load (is);
+            return (load);
         }
-        return (null);
+        catch (IOException e)
+        {
+            return (null);
+        }
+    }
+
+    private static long load_figure (Properties load, String key)
+    {
+        try
+        {
+            return ((load == null)? 0: Long.parseLong (load.getProperty (key, "0")));
+        }
+        catch (NumberFormatException e)
+        {
+            return (0);
+        }
+    }
+
+    private static boolean less_loaded (String dir, String other_dir, String server_name)
+    {
+        // Pending work first, recent latency breaks the ties.
+        // JVMs not publishing load figures count as idle.
+        Properties load = readServerLoad (dir, server_name);
+        Properties other_load = readServerLoad (other_dir, server_name);
+        long work = load_figure (load, LOAD_QUEUED) + load_figure (load, LOAD_ACTIVE);
+        long other_work = load_figure (other_load, LOAD_QUEUED) + load_figure (other_load, LOAD_ACTIVE);
+
+        if (work != other_work)
+        {
+            return (work < other_work);
+        }
+        return (load_figure (load, LOAD_P99_US) <= load_figure (other_load, LOAD_P99_US));
+    }
+
+    public static String selectAdmindDir (Map<String, Properties> candidates, String server_name)
+    {
+        if (candidates.isEmpty ())
+        {
+            return (null);
+        }
+
+        String[] dirs = candidates.keySet ().toArray (new String [candidates.size ()]);
+
+        if (dirs.length == 1)
+        {
+            return (dirs [0]);
+        }
+
+        // Power of two choices: nearly as good as the least loaded of all,
+        // and only two load descriptors are read however many JVMs there are
+        int first = random.nextInt (dirs.length);
+        int second = (first + 1 + random.nextInt (dirs.length - 1)) % dirs.length;
+        return (less_loaded (dirs [first], dirs [second], server_name)? dirs [first]: dirs [second]);
+    }
+
+    public static String initAdmindDir (String server_name)
+    {
+        if (server_name == null)
+        {
+            server_name = default_server_name;
+        }
+
+        // JVMs sharing the server name share the load
+        Map<String, Properties> candidates = findAdmindDirs (server_name);
+        String selected_dir = selectAdmindDir (candidates, server_name);
+
+        if (selected_dir == null)
+        {
+            return (null);
+        }
+
+        invalidateAdmindDir ();
+        server_properties = candidates.get (selected_dir);
+        admind_dir = selected_dir;
+        return (admind_dir);
     }
 
     //=================================================================================================================
-    // ASYNCHRONOUS TASKS
+    // SHARED WORK QUEUE
     //=================================================================================================================
 
-    public static String encodeArgs (String[] args)
+    // Every JVM serving a server.name may also serve the shared queue dir
+    // of that name (like /tmp/jvm_admind_spock/queue_enterprise). A JVM with
+    // spare capacity claims a queued request by an atomic rename into its
+    // own AdminD dir, where it runs as any other request. Since the request
+    // lives in exactly one place at any moment, clients find it again with
+    // queueLocate() and follow it with the usual asyncXXX() calls.
+
+    public static String getQueueDir (String server_name)
     {
-        return ((args.length == 0)? "\f": String.join ("\n", args) + "\n");
+        return (root_admind_dir + File.separator + QUEUE_DIRECTORY
+            + ((server_name == null)? default_server_name: server_name));
     }
 
-    public static String[] decodeArgs (InputStream in)
+    public static String setupQueueDir (String server_name)
         throws IOException
     {
-        List<String> args = new ArrayList<> ();
+        String queue_dir = getQueueDir (server_name);
+        mksane (root_admind_dir);
+        mksane (queue_dir);
+        return (queue_dir);
+    }
 
-        try (BufferedReader r = new BufferedReader (new InputStreamReader (in)))
+    public static String queueInvoke (String server_name, String task, byte[] data, String... options)
+    {
+        String queue_dir = getQueueDir (server_name);
+
+        if (!is_valid_dir (queue_dir))
         {
-            for (String line; (line = r.readLine()) != null && !line.equals("\f"); args.add (line));
+            return (null);
+        }
+
+        // Written aside and renamed, so a claimer never sees a partial request
+        File new_request = create_request (queue_dir, task, QUEUE_SUFFIX, data, options);
+
+        if (new_request == null)
+        {
+            return (null);
+        }
+
+        String new_path = new_request.getPath ();
+        File request = new File (new_path.substring (0, new_path.length () - QUEUE_SUFFIX.length ()) + REQUEST_SUFFIX);
+
+        try
+        {
+            Files.move (new_request.toPath (), request.toPath (), StandardCopyOption.ATOMIC_MOVE);
+            return (request.getPath ());
+        }
+        catch (IOException e)
+        {
+            new_request.delete ();
+            return (null);
         }
-        return (args.toArray (new String [args.size ()]));
     }
 
-    public static String asyncInvoke (String task, String data, String... options)
+    public static String queueInvoke (String server_name, String task, String data, String... options)
     {
-        String dir = getAdmindDir ();
+        return (queueInvoke (server_name, task, data.getBytes (StandardCharsets.UTF_8), options));
+    }
 
-        if (dir == null)
+    public static String queueLocate (String request)
+    {
+        // Still waiting on the queue?
+        File queued = new File (request);
+
+        if (queued.exists ())
         {
-            return (null);
+            return (request);
+        }
+
+        // Otherwise it was claimed by one of the JVMs serving the queue
+        String queue_name = queued.getParentFile ().getName ();
+        String server_name = queue_name.startsWith (QUEUE_DIRECTORY)?
+            queue_name.substring (QUEUE_DIRECTORY.length ()): null;
+
+        for (String dir: findAdmindDirs (server_name).keySet ())
+        {
+            File claimed = new File (dir, queued.getName ());
+
+            if (claimed.exists ())
+            {
+                return (claimed.getPath ());
+            }
         }
+        return (null);
+    }
+
+    //=================================================================================================================
+    // ASYNCHRONOUS TASKS
+    //=================================================================================================================
+
+    public static String encodeArgs (String... args)
+    {
+        // The old text framing, one argument per line, so arguments can't
+        // contain line breaks. Kept as is for existing clients.
+        return ((args.length == 0)? "\f": String.join ("\n", args) + "\n");
+    }
+
+    public static byte[] encodeArgBytes (String... args)
+    {
+        // Length-prefixed, so arguments may contain anything (see ArgsCodec)
+        return (ArgsCodec.encode (args));
+    }
 
+    public static byte[][] decodeArgBytes (InputStream in)
+        throws IOException
+    {
+        // Both binary and the old text framing are accepted
+        return (ArgsCodec.decodeBytes (in));
+    }
+
+    public static String[] decodeArgs (InputStream in)
+        throws IOException
+    {
+        return (ArgsCodec.toStrings (ArgsCodec.decodeBytes (in)));
+    }
+
+    private static File create_request (String dir, String task, String suffix, byte[] data, String... options)
+    {
         StringBuilder sb = new StringBuilder ();
         sb.append(task);
 
@@ -418,42 +814,112 @@ public class AdmindUtil
         sb.append("--");
 
         int base_identifier_len = sb.length ();
-        File request = null;
 
         for (int attemps = 0; attemps < 10; attemps++)
         {
             sb.setLength (base_identifier_len);
             sb.append (Long.toHexString (random.nextLong ()));
-            sb.append (REQUEST_SUFFIX);
-            request = new File (dir, sb.toString ());
+            sb.append (suffix);
+            File request = new File (dir, sb.toString ());
 
+            // The request is created, permissions set and written on one open()
             try
             {
-                if (request.createNewFile ())
+                if (TRANSACTION_SUFFIX.equals (suffix))
+                {
+                    try (TransactionFile transaction = TransactionFile.create (request, FILE_ATTRIBUTES))
+                    {
+                        transaction.writeRequest (data);
+                    }
+                }
+                else
                 {
-                    fix_permissions (request);
-                    break;
+                    try (OutputStream os = newOutputStream (request))
+                    {
+                        os.write (data);
+                    }
                 }
-                request = null;
+                return (request);
+            }
+            catch (FileAlreadyExistsException retry) {}
+            catch (IOException e)
+            {
+                // Unable to process the request
+                request.delete ();
+                return (null);
             }
-            catch (IOException ignore) {};
         }
+        return (null);
+    }
 
-        if (request == null)
+    public static String asyncInvoke (String task, byte[] data, String... options)
+    {
+        String dir = getAdmindDir ();
+
+        if (dir == null)
         {
             return (null);
         }
 
-        try (OutputStream os = new FileOutputStream (request))
+        File request = create_request (dir, task, REQUEST_SUFFIX, data, options);
+        return ((request == null)? null: request.getPath ());
+    }
+
+    public static String asyncInvoke (String task, String data, String... options)
+    {
+        return (asyncInvoke (task, data.getBytes (StandardCharsets.UTF_8), options));
+    }
+
+    public static String asyncInvokeTransaction (String task, byte[] data, String... options)
+    {
+        String dir = getAdmindDir ();
+
+        if (dir == null)
         {
-            os.write (data.getBytes (StandardCharsets.UTF_8));
-            return (request.getPath ());
+            return (null);
         }
-        catch (IOException ignore) {};
 
-        // Unable to process the request
-        request.delete ();
-        return (null);
+        // Same as asyncInvoke(), but request, response and status
+        // all live inside a single file (see TransactionFile)
+        File request = create_request (dir, task, TRANSACTION_SUFFIX, data, options);
+        return ((request == null)? null: request.getPath ());
+    }
+
+    public static String asyncInvokeTransaction (String task, String data, String... options)
+    {
+        return (asyncInvokeTransaction (task, data.getBytes (StandardCharsets.UTF_8), options));
+    }
+
+    public static String asyncInvokeAt (String dir, String task, byte[] data, String... options)
+    {
+        // A transaction on the given AdminD dir, instead of the current one
+        File request = create_request (dir, task, TRANSACTION_SUFFIX, data, options);
+        return ((request == null)? null: request.getPath ());
+    }
+
+    public static byte[] encodePipeline (byte[] data, String... stages)
+    {
+        // The stages go first, the data feeds the first stage
+        byte[] header = encodeArgBytes (stages);
+        byte[] request = Arrays.copyOf (header, header.length + data.length);
+        System.arraycopy (data, 0, request, header.length, data.length);
+        return (request);
+    }
+
+    public static String asyncInvokePipeline (byte[] data, String... stages)
+    {
+        // Each stage is "name [option...]", like "toupper" or "grep -i foo"
+        return (asyncInvokeTransaction (PIPELINE_TASK, encodePipeline (data, stages)));
+    }
+
+    public static String asyncInvokePipeline (String data, String... stages)
+    {
+        return (asyncInvokePipeline (data.getBytes (StandardCharsets.UTF_8), stages));
+    }
+
+    private static boolean is_transaction (String request)
+    {
+        return (request.endsWith (TRANSACTION_SUFFIX));
     }
 
     public static File requestFile (String request)
@@ -466,17 +932,25 @@ public class AdmindUtil
         return (new File (request.substring (0, request.lastIndexOf (REQUEST_SUFFIX)) + RESPONSE_SUFFIX));
     }
 
+    public static File ringFile (String request)
+    {
+        return (new File (request.substring (0, request.lastIndexOf (REQUEST_SUFFIX)) + RING_SUFFIX));
+    }
+
     public static File createAndFixPermissions (File file)
     {
         try
         {
-            if (!file.exists ())
+            try
             {
-                file.createNewFile ();
+                // Usually a single open(O_CREAT|O_EXCL, 0600)...
+                createFile (file);
+            }
+            catch (FileAlreadyExistsException e)
+            {
+                // ...otherwise ensure we always have u+rw/go-rwx set
+                fix_permissions (file.toPath (), false);
             }
-
-            // Ensure we always have u+rw/go-rwx set
-            fix_permissions (file);
             return (file);
         }
         catch (IOException e)
@@ -508,15 +982,71 @@ public class AdmindUtil
         }
     }
 
+    private static int transaction_status (String request)
+    {
+        try (TransactionFile transaction = TransactionFile.open (requestFile (request)))
+        {
+            transaction.readHeader ();
+
+            switch (transaction.getState ())
+            {
+                case TransactionFile.STATE_READY:   return (ASYNC_READY);
+                case TransactionFile.STATE_ERROR:   return (ASYNC_ERROR);
+                case TransactionFile.STATE_RUNNING: return (ASYNC_RUNNING);
+                default:                            return (ASYNC_PENDING);
+            }
+        }
+        catch (IOException e)
+        {
+            // No request
+            return (ASYNC_GONE);
+        }
+    }
+
+    private static String transaction_contents (String request, boolean response)
+    {
+        try (TransactionFile transaction = TransactionFile.open (requestFile (request)))
+        {
+            if (!transaction.readHeader ())
+            {
+                return (null);
+            }
+            byte[] contents = response? transaction.readResponse (): transaction.readError ();
+            return (new String (contents, StandardCharsets.UTF_8));
+        }
+        catch (IOException e)
+        {
+            return (null);
+        }
+    }
+
+    private static long file_size (File file)
+    {
+        try
+        {
+            // Both exists() and length() on a single stat()
+            return (Files.readAttributes (file.toPath (), BasicFileAttributes.class).size ());
+        }
+        catch (IOException e)
+        {
+            return (-1);
+        }
+    }
+
     public static int asyncStatus (String request)
     {
-        File status = statusFile (request);
+        if (is_transaction (request))
+        {
+            return (transaction_status (request));
+        }
+
+        long status_size = file_size (statusFile (request));
 
         // Status -> task finished
-        if (status.exists ())
+        if (status_size != -1)
         {
             // Status empty = success, not empty = error message
-            return (status.length () == 0? ASYNC_READY: ASYNC_ERROR);
+            return (status_size == 0? ASYNC_READY: ASYNC_ERROR);
         }
         else if (responseFile (request).exists ())
         {
@@ -585,18 +1115,69 @@ public class AdmindUtil
 
     public static boolean asyncFinished (String request)
     {
+        if (is_transaction (request))
+        {
+            int status = transaction_status (request);
+            return (status == ASYNC_READY || status == ASYNC_ERROR);
+        }
         return (statusFile (request).exists ());
     }
 
+    private static boolean is_subscription (String request)
+    {
+        // Options are dash separated, see create_request()
+        return (new File (request).getName ().contains ("-" + SUBSCRIBE_OPTION + "-"));
+    }
+
     private static void remove_transaction (String request)
     {
+        if (is_transaction (request))
+        {
+            requestFile (request).delete ();
+            return;
+        }
+
         requestFile (request).delete ();
         responseFile (request).delete ();
         statusFile (request).delete ();
+
+        if (is_subscription (request))
+        {
+            // Only subscriptions have a ring, no unlink() wasted on the others
+            ringFile (request).delete ();
+        }
+    }
+
+    private static String transaction_response (String request)
+    {
+        // Status and response on a single open()
+        try (TransactionFile transaction = TransactionFile.open (requestFile (request)))
+        {
+            if (!transaction.readHeader () || transaction.getState () != TransactionFile.STATE_READY)
+            {
+                return (null);
+            }
+            return (new String (transaction.readResponse (), StandardCharsets.UTF_8));
+        }
+        catch (IOException e)
+        {
+            return (null);
+        }
     }
 
     public static String asyncResponse (String request)
     {
+        if (is_transaction (request))
+        {
+            String contents = transaction_response (request);
+
+            if (contents != null)
+            {
+                remove_transaction (request);
+            }
+            return (contents);
+        }
+
         if (asyncStatus (request) != ASYNC_READY)
         {
             // We filter out any partial results
@@ -609,14 +1190,140 @@ public class AdmindUtil
         return (contents);
     }
 
+    public static String deadlineOption (long deadline_ms)
+    {
+        return (DEADLINE_OPTION + deadline_ms);
+    }
+
+    public static String asyncSubscribe (String task, byte[] data, String... options)
+    {
+        // Records are read with RingFile.open(ringFile(request)).tail(), or
+        // tail(seq) to resume, the subscription lasts while heartbeat() is
+        // called often enough
+        String[] subscribe_options = Arrays.copyOf (options, options.length + 1);
+        subscribe_options [options.length] = SUBSCRIBE_OPTION;
+        return (asyncInvoke (task, data, subscribe_options));
+    }
+
+    public static String asyncSubscribe (String task, String data, String... options)
+    {
+        return (asyncSubscribe (task, data.getBytes (StandardCharsets.UTF_8), options));
+    }
+
+    public static boolean heartbeat (String request)
+    {
+        return (requestFile (request).setLastModified (System.currentTimeMillis ()));
+    }
+
+    public static void unsubscribe (String request)
+    {
+        // The task notices the request is gone and ends, the files go with it
+        remove_transaction (request);
+    }
+
+    public static String scheduleInvoke (String id, String spec, String task, byte[] data, String... options)
+    {
+        // The spec is "rate:<ms>", "delay:<ms>" or "cron:<min> <hour> <day> <month> <weekday>",
+        // adding an existing id replaces the schedule
+        String[] args = new String [options.length + 4];
+        args [0] = "add";
+        args [1] = id;
+        args [2] = spec;
+        args [3] = task;
+        System.arraycopy (options, 0, args, 4, options.length);
+
+        byte[] header = encodeArgBytes (args);
+        byte[] request = Arrays.copyOf (header, header.length + data.length);
+        System.arraycopy (data, 0, request, header.length, data.length);
+        return (asyncInvokeTransaction (SCHEDULE_TASK, request));
+    }
+
+    public static String scheduleInvoke (String id, String spec, String task, String data, String... options)
+    {
+        return (scheduleInvoke (id, spec, task, data.getBytes (StandardCharsets.UTF_8), options));
+    }
+
+    public static String scheduleCancel (String id)
+    {
+        return (asyncInvokeTransaction (SCHEDULE_TASK, encodeArgBytes ("cancel", id)));
+    }
+
+    public static String readScheduleResult (String id)
+    {
+        String dir = getAdmindDir ();
+        return ((dir == null)? null: get_contents (scheduleFile (dir, id)));
+    }
+
+    public static Properties getScheduleHeader (String result)
+    {
+        if (result == null || !result.startsWith (SCHEDULE_HEADER))
+        {
+            return (null);
+        }
+
+        Properties header = new Properties ();
+        int end = result.indexOf ('\n');
+
+        for (String field: result.substring (SCHEDULE_HEADER.length (), (end == -1)? result.length (): end).split (" "))
+        {
+            int equals = field.indexOf ('=');
+
+            if (equals != -1)
+            {
+                header.setProperty (field.substring (0, equals), field.substring (equals + 1));
+            }
+        }
+        return (header);
+    }
+
+    public static String stripScheduleHeader (String result)
+    {
+        int end = (result == null || !result.startsWith (SCHEDULE_HEADER))? -1: result.indexOf ('\n');
+        return ((end == -1)? result: result.substring (end + 1));
+    }
+
+    public static Properties getStatsTrailer (String response)
+    {
+        int trailer = (response == null)? -1: response.lastIndexOf (STATS_TRAILER);
+
+        if (trailer == -1)
+        {
+            return (null);
+        }
+
+        Properties stats = new Properties ();
+
+        for (String field: response.substring (trailer + STATS_TRAILER.length ()).trim ().split (" "))
+        {
+            int equals = field.indexOf ('=');
+
+            if (equals != -1)
+            {
+                stats.setProperty (field.substring (0, equals), field.substring (equals + 1));
+            }
+        }
+        return (stats);
+    }
+
+    public static String stripStatsTrailer (String response)
+    {
+        int trailer = (response == null)? -1: response.lastIndexOf (STATS_TRAILER);
+        return ((trailer == -1)? response: response.substring (0, trailer));
+    }
+
     public static String asyncPeekResponse (String request)
     {
+        if (is_transaction (request))
+        {
+            return (transaction_contents (request, true));
+        }
         return (get_contents (responseFile (request)));
     }
 
     public static String asyncError (String request)
     {
-        String error = get_contents (statusFile (request));
+        String error = is_transaction (request)?
+            transaction_contents (request, false): get_contents (statusFile (request));
 
         // Always remove the transaction...
         remove_transaction (request);
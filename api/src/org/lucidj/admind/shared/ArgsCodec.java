@@ -0,0 +1,325 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind.shared;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Binary argument framing (all numbers big-endian):
+//
+//   "\0ARG" <version:1> <count:4> <size:4> { <length:4> <bytes:length> }*
+//
+// Size is the number of bytes after the header, so a reader takes the
+// header and then the whole frame on one read each, whatever the count.
+// The leading NUL never shows up on the old text framing (one argument
+// per line, "\f" alone for an empty list), which is still decoded.
+//
+public class ArgsCodec
+{
+    public final static int VERSION = 1;
+
+    private final static byte[] MAGIC = { 0, 'A', 'R', 'G' };
+    private final static int COUNT_OFFSET = MAGIC.length + 1;
+    private final static int SIZE_OFFSET = COUNT_OFFSET + 4;
+    private final static int HEADER_SIZE = SIZE_OFFSET + 4;
+    private final static int MAX_ARGS = 65536;
+    private final static int MAX_ARG_LENGTH = 64 * 1024 * 1024;
+    private final static int MAX_FRAME_SIZE = MAX_ARG_LENGTH;
+
+    public static byte[] encode (String... args)
+    {
+        byte[][] arg_bytes = new byte [args.length][];
+
+        for (int i = 0; i < args.length; i++)
+        {
+            arg_bytes [i] = args [i].getBytes (StandardCharsets.UTF_8);
+        }
+        return (encodeBytes (arg_bytes));
+    }
+
+    public static byte[] encodeBytes (byte[]... args)
+    {
+        int size = HEADER_SIZE;
+
+        for (byte[] arg: args)
+        {
+            size += 4 + arg.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate (size);
+        buffer.put (MAGIC);
+        buffer.put ((byte)VERSION);
+        buffer.putInt (args.length);
+        buffer.putInt (size - HEADER_SIZE);
+
+        for (byte[] arg: args)
+        {
+            buffer.putInt (arg.length);
+            buffer.put (arg);
+        }
+        return (buffer.array ());
+    }
+
+    public static String[] toStrings (byte[][] args)
+    {
+        String[] strings = new String [args.length];
+
+        for (int i = 0; i < args.length; i++)
+        {
+            strings [i] = new String (args [i], StandardCharsets.UTF_8);
+        }
+        return (strings);
+    }
+
+    private static int read_fully (InputStream in, byte[] buffer, int offset, int length)
+        throws IOException
+    {
+        int total = 0;
+
+        while (total < length)
+        {
+            int count = in.read (buffer, offset + total, length - total);
+
+            if (count == -1)
+            {
+                break;
+            }
+            total += count;
+        }
+        return (total);
+    }
+
+    public static byte[][] decodeBytes (InputStream in)
+        throws IOException
+    {
+        // Read exactly what the framing says, the rest of the stream is left untouched
+        byte[] header = new byte [HEADER_SIZE];
+        int count = read_fully (in, header, 0, HEADER_SIZE);
+
+        if (count == 0)
+        {
+            return (new byte [0][]);
+        }
+
+        if (header [0] != MAGIC [0])
+        {
+            // Old client, text framing
+            return (decode_text (header, count, in));
+        }
+
+        if (count < HEADER_SIZE)
+        {
+            throw (new EOFException ("Truncated arguments"));
+        }
+
+        Decoder decoder = new Decoder ();
+        decoder.decode (ByteBuffer.wrap (header));
+        long size = ByteBuffer.wrap (header).getInt (SIZE_OFFSET) & 0xffffffffL;
+
+        if (size > MAX_FRAME_SIZE)
+        {
+            throw (new IOException ("Invalid arguments size: " + size));
+        }
+
+        // The whole frame at once, usually a single read()
+        byte[] frame = new byte [(int)size];
+
+        if (read_fully (in, frame, 0, frame.length) < frame.length)
+        {
+            throw (new EOFException ("Truncated arguments"));
+        }
+
+        ByteBuffer src = ByteBuffer.wrap (frame);
+
+        if (!decoder.decode (src) || src.hasRemaining ())
+        {
+            throw (new IOException ("Arguments don't match the frame size"));
+        }
+        return (decoder.getArgs ());
+    }
+
+    private static byte[][] decode_text (byte[] prefix, int length, InputStream in)
+        throws IOException
+    {
+        // The text framing has no size, it takes the whole stream. Old clients
+        // sent nothing else, and the stream is left open for the caller.
+        List<byte[]> args = new ArrayList<> ();
+        InputStream text_in = new SequenceInputStream (new ByteArrayInputStream (prefix, 0, length), in);
+        BufferedReader r = new BufferedReader (new InputStreamReader (text_in, StandardCharsets.UTF_8));
+
+        for (String line; (line = r.readLine()) != null && !line.equals("\f");
+             args.add (line.getBytes (StandardCharsets.UTF_8)));
+        return (args.toArray (new byte [args.size ()][]));
+    }
+
+    public static class Decoder
+    {
+        private final static int STATE_HEADER = 0;
+        private final static int STATE_LENGTH = 1;
+        private final static int STATE_DATA = 2;
+        private final static int STATE_COMPLETE = 3;
+
+        private final ByteBuffer header = ByteBuffer.allocate (HEADER_SIZE);
+        private final ByteBuffer length = ByteBuffer.allocate (4);
+        private int state;
+        private byte[][] args;
+        private int index;
+        private ByteBuffer current;
+
+        public Decoder ()
+        {
+            reset ();
+        }
+
+        public void reset ()
+        {
+            header.clear ();
+            length.clear ();
+            state = STATE_HEADER;
+            args = null;
+            index = 0;
+            current = null;
+        }
+
+        public boolean isComplete ()
+        {
+            return (state == STATE_COMPLETE);
+        }
+
+        public long remaining ()
+        {
+            // How many bytes are needed to finish the current field
+            switch (state)
+            {
+                case STATE_HEADER: return (header.remaining ());
+                case STATE_LENGTH: return (length.remaining ());
+                case STATE_DATA:   return (current.remaining ());
+                default:           return (0);
+            }
+        }
+
+        public byte[][] getArgs ()
+        {
+            return (isComplete ()? args: null);
+        }
+
+        private static void transfer (ByteBuffer src, ByteBuffer dst)
+        {
+            int count = Math.min (src.remaining (), dst.remaining ());
+            int src_limit = src.limit ();
+
+            src.limit (src.position () + count);
+            dst.put (src);
+            src.limit (src_limit);
+        }
+
+        private void next_arg ()
+        {
+            state = (index < args.length)? STATE_LENGTH: STATE_COMPLETE;
+            length.clear ();
+        }
+
+        // Consumes up to the end of the arguments, returns true once complete
+        public boolean decode (ByteBuffer src)
+            throws IOException
+        {
+            while (src.hasRemaining () && state != STATE_COMPLETE)
+            {
+                switch (state)
+                {
+                    case STATE_HEADER:
+                    {
+                        transfer (src, header);
+
+                        if (header.hasRemaining ())
+                        {
+                            break;
+                        }
+
+                        for (int i = 0; i < MAGIC.length; i++)
+                        {
+                            if (header.get (i) != MAGIC [i])
+                            {
+                                throw (new IOException ("Invalid arguments header"));
+                            }
+                        }
+
+                        if (header.get (MAGIC.length) != VERSION)
+                        {
+                            throw (new IOException ("Unsupported arguments version: " + header.get (MAGIC.length)));
+                        }
+
+                        int count = header.getInt (COUNT_OFFSET);
+
+                        if (count < 0 || count > MAX_ARGS)
+                        {
+                            throw (new IOException ("Invalid arguments count: " + count));
+                        }
+                        args = new byte [count][];
+                        next_arg ();
+                        break;
+                    }
+                    case STATE_LENGTH:
+                    {
+                        transfer (src, length);
+
+                        if (length.hasRemaining ())
+                        {
+                            break;
+                        }
+
+                        int arg_length = length.getInt (0);
+
+                        if (arg_length < 0 || arg_length > MAX_ARG_LENGTH)
+                        {
+                            throw (new IOException ("Invalid argument length: " + arg_length));
+                        }
+                        current = ByteBuffer.wrap (args [index] = new byte [arg_length]);
+                        state = STATE_DATA;
+                        break;
+                    }
+                    case STATE_DATA:
+                    {
+                        transfer (src, current);
+
+                        if (!current.hasRemaining ())
+                        {
+                            index++;
+                            current = null;
+                            next_arg ();
+                        }
+                        break;
+                    }
+                }
+            }
+
+            // Empty arguments are complete as soon as they're found
+            if (state == STATE_DATA && !current.hasRemaining ())
+            {
+                index++;
+                current = null;
+                next_arg ();
+            }
+            return (state == STATE_COMPLETE);
+        }
+    }
+}
+
+// EOF
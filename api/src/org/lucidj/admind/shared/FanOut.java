@@ -0,0 +1,206 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind.shared;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+// Sends the same task to every live JVM (optionally only those with a given
+// server.name) and gathers the results. All requests are submitted before
+// waiting on any of them, and they are all polled together under a single
+// deadline, so a sweep over many JVMs takes about as long as the slowest one.
+//
+public class FanOut
+{
+    private final static long MAX_POLL_INTERVAL_MS = 100;
+
+    public static List<Result> invokeAll (String server_name, long timeout_ms, String task, byte[] data,
+                                          String... options)
+    {
+        long deadline = System.currentTimeMillis () + timeout_ms;
+        List<Result> results = new ArrayList<> ();
+
+        for (Map.Entry<String, Properties> jvm: AdmindUtil.findAdmindDirs (server_name).entrySet ())
+        {
+            Result result = new Result (jvm.getKey (), jvm.getValue ());
+            result.request = AdmindUtil.asyncInvokeAt (result.admind_dir, task, data, options);
+
+            if (result.request == null)
+            {
+                result.status = AdmindUtil.ASYNC_ERROR;
+                result.error = "Unable to submit request";
+                result.finished = true;
+            }
+            results.add (result);
+        }
+
+        int pending = 0;
+
+        for (Result result: results)
+        {
+            pending += result.finished? 0: 1;
+        }
+
+        long poll_interval_ms = 1;
+        boolean interrupted = false;
+
+        while (pending > 0)
+        {
+            // Interrupted, we give up on every request still pending right now
+            boolean expired = interrupted || System.currentTimeMillis () > deadline;
+
+            for (Result result: results)
+            {
+                if (result.finished)
+                {
+                    continue;
+                }
+
+                int status = AdmindUtil.asyncStatus (result.request);
+
+                if (status == AdmindUtil.ASYNC_READY)
+                {
+                    result.response = AdmindUtil.asyncResponse (result.request);
+                }
+                else if (status == AdmindUtil.ASYNC_ERROR)
+                {
+                    result.response = AdmindUtil.asyncPeekResponse (result.request);
+                    result.error = AdmindUtil.asyncError (result.request);
+                }
+                else if (status == AdmindUtil.ASYNC_GONE)
+                {
+                    result.error = "Server gone";
+                }
+                else if (expired)
+                {
+                    // Whatever it managed to do, and remove the transaction
+                    result.response = AdmindUtil.asyncPeekResponse (result.request);
+                    AdmindUtil.asyncError (result.request);
+                    result.error = interrupted? "Interrupted": "Timeout";
+                    result.timed_out = !interrupted;
+                    status = AdmindUtil.ASYNC_ERROR;
+                }
+                else
+                {
+                    continue;
+                }
+
+                result.status = status;
+                result.finished = true;
+                pending--;
+            }
+
+            if (pending > 0)
+            {
+                try
+                {
+                    // Starts at the AdmindUtil.asyncPoll() granularity and backs off, so
+                    // slow JVMs don't cost a round of syscalls per directory every 1ms
+                    long remaining_ms = deadline - System.currentTimeMillis ();
+                    Thread.sleep (Math.max (1, Math.min (poll_interval_ms, remaining_ms)));
+                    poll_interval_ms = Math.min (poll_interval_ms * 2, MAX_POLL_INTERVAL_MS);
+                }
+                catch (InterruptedException e)
+                {
+                    // One more round to clean up, the way the timeout does. The
+                    // transactions are channels, the interrupt waits until we're done.
+                    interrupted = true;
+                }
+            }
+        }
+
+        if (interrupted)
+        {
+            Thread.currentThread ().interrupt ();
+        }
+        return (results);
+    }
+
+    public static List<Result> invokeAll (String server_name, long timeout_ms, String task, String data,
+                                          String... options)
+    {
+        return (invokeAll (server_name, timeout_ms, task, data.getBytes (StandardCharsets.UTF_8), options));
+    }
+
+    public static class Result
+    {
+        private final String admind_dir;
+        private final Properties server_properties;
+        private String request;
+        private int status = AdmindUtil.ASYNC_PENDING;
+        private String response;
+        private String error;
+        private boolean finished;
+        private boolean timed_out;
+
+        Result (String admind_dir, Properties server_properties)
+        {
+            this.admind_dir = admind_dir;
+            this.server_properties = server_properties;
+        }
+
+        public String getAdmindDir ()
+        {
+            return (admind_dir);
+        }
+
+        public Properties getServerProperties ()
+        {
+            return (server_properties);
+        }
+
+        public String getJvmId ()
+        {
+            return (server_properties.getProperty (AdmindUtil.SERVER_JVMID_PROPERTY));
+        }
+
+        public String getRequest ()
+        {
+            return (request);
+        }
+
+        public int getStatus ()
+        {
+            return (status);
+        }
+
+        public boolean isSuccess ()
+        {
+            return (status == AdmindUtil.ASYNC_READY);
+        }
+
+        public boolean isTimedOut ()
+        {
+            return (timed_out);
+        }
+
+        public String getResponse ()
+        {
+            return (response);
+        }
+
+        public String getError ()
+        {
+            return (error);
+        }
+    }
+}
+
+// EOF
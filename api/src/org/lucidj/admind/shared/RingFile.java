@@ -0,0 +1,445 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind.shared;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+// Fixed-size record ring, one writer and any number of tailing readers
+// (all numbers big-endian):
+//
+//  0: int  magic ("ADRF")        32: long write_pos
+//  4: int  version               40: long oldest_seq
+//  8: long capacity              48: long oldest_pos
+// 16: long generation            56: int  closed, int reserved
+// 24: long write_seq             64: data ring, 'capacity' bytes
+//
+// Records are <length:4> <seq:8> <bytes:length>, wrapping around the data
+// ring. Positions are logical (bytes written since the start), the file
+// offset is HEADER_SIZE + pos % capacity. Before overwriting old records
+// the writer moves oldest_pos past them, so a reader that finds oldest_pos
+// beyond what it just read knows it was lapped.
+//
+// The header is a seqlock: the writer makes the generation odd, writes the
+// header, then makes it even again, each step its own pwrite(). Readers
+// read the generation, the header and the generation again, and retry
+// while it is odd or changed in between. Nothing is assumed about the
+// order bytes are copied within a single read or write.
+//
+public class RingFile implements Closeable
+{
+    public final static int HEADER_SIZE = 64;
+    public final static int RECORD_HEADER_SIZE = 12;
+
+    private final static int MAGIC = 0x41445246;
+    private final static int VERSION = 2;
+    private final static int GENERATION_OFFSET = 16;
+    private final static int HEADER_RETRIES = 100;
+
+    private final FileChannel channel;
+    private final ByteBuffer header = ByteBuffer.allocate (HEADER_SIZE);
+    private final ByteBuffer generation_buffer = ByteBuffer.allocate (8);
+    private final ByteBuffer record_header = ByteBuffer.allocate (RECORD_HEADER_SIZE);
+
+    private long capacity;
+    private long generation;
+    private long write_seq;
+    private long write_pos;
+    private long oldest_seq;
+    private long oldest_pos;
+    private boolean closed;
+
+    private RingFile (FileChannel channel)
+    {
+        this.channel = channel;
+    }
+
+    public static RingFile open (File file)
+        throws IOException
+    {
+        return (new RingFile (FileChannel.open (file.toPath (), StandardOpenOption.READ)));
+    }
+
+    public static RingFile create (File file, long capacity, FileAttribute<?>... attrs)
+        throws IOException
+    {
+        Set<StandardOpenOption> options = EnumSet.of (StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        RingFile ring = new RingFile (FileChannel.open (file.toPath (), options, attrs));
+        ring.capacity = capacity;
+        ring.write_header ();
+        return (ring);
+    }
+
+    public long getCapacity ()
+    {
+        return (capacity);
+    }
+
+    public long getWriteSeq ()
+    {
+        return (write_seq);
+    }
+
+    public long getOldestSeq ()
+    {
+        return (oldest_seq);
+    }
+
+    public boolean isClosed ()
+    {
+        return (closed);
+    }
+
+    //=================================================================================================================
+    // HEADER
+    //=================================================================================================================
+
+    private long read_generation ()
+        throws IOException
+    {
+        generation_buffer.clear ();
+
+        while (generation_buffer.hasRemaining ())
+        {
+            if (channel.read (generation_buffer, GENERATION_OFFSET + generation_buffer.position ()) == -1)
+            {
+                // Still being created
+                return (-1);
+            }
+        }
+        return (generation_buffer.getLong (0));
+    }
+
+    public boolean readHeader ()
+        throws IOException
+    {
+        for (int retry = 0; retry < HEADER_RETRIES; retry++)
+        {
+            long before = read_generation ();
+
+            if (before == -1)
+            {
+                return (false);
+            }
+
+            if ((before & 1) == 0)
+            {
+                header.clear ();
+
+                while (header.hasRemaining ())
+                {
+                    if (channel.read (header, header.position ()) == -1)
+                    {
+                        return (false);
+                    }
+                }
+
+                if (header.getInt (0) != MAGIC || header.getInt (4) != VERSION)
+                {
+                    return (false);
+                }
+
+                if (read_generation () == before)
+                {
+                    capacity = header.getLong (8);
+                    generation = before;
+                    write_seq = header.getLong (24);
+                    write_pos = header.getLong (32);
+                    oldest_seq = header.getLong (40);
+                    oldest_pos = header.getLong (48);
+                    closed = header.getInt (56) != 0;
+                    return (true);
+                }
+            }
+            Thread.yield ();
+        }
+        return (false);
+    }
+
+    private void write_fully (ByteBuffer buffer, long position)
+        throws IOException
+    {
+        while (buffer.hasRemaining ())
+        {
+            position += channel.write (buffer, position);
+        }
+    }
+
+    private void read_fully (ByteBuffer buffer, long position)
+        throws IOException
+    {
+        while (buffer.hasRemaining ())
+        {
+            if (channel.read (buffer, position + buffer.position ()) == -1)
+            {
+                throw (new EOFException ("Truncated ring file"));
+            }
+        }
+    }
+
+    private void write_generation ()
+        throws IOException
+    {
+        generation_buffer.clear ();
+        generation_buffer.putLong (generation);
+        generation_buffer.flip ();
+        write_fully (generation_buffer, GENERATION_OFFSET);
+    }
+
+    private void write_header ()
+        throws IOException
+    {
+        // Odd while the header is being written, a brand new file is odd already
+        generation++;
+
+        if (generation != 1)
+        {
+            write_generation ();
+        }
+
+        header.clear ();
+        header.putInt (MAGIC);
+        header.putInt (VERSION);
+        header.putLong (capacity);
+        header.putLong (generation);
+        header.putLong (write_seq);
+        header.putLong (write_pos);
+        header.putLong (oldest_seq);
+        header.putLong (oldest_pos);
+        header.putInt (closed? 1: 0);
+        header.putInt (0);
+        header.flip ();
+        write_fully (header, 0);
+
+        generation++;
+        write_generation ();
+    }
+
+    // Ring data at a logical position, split in two when it wraps
+    private void transfer (ByteBuffer buffer, long pos, boolean write)
+        throws IOException
+    {
+        int limit = buffer.limit ();
+
+        while (buffer.position () < limit)
+        {
+            long offset = pos % capacity;
+            int count = (int)Math.min (limit - buffer.position (), capacity - offset);
+
+            buffer.limit (buffer.position () + count);
+
+            if (write)
+            {
+                write_fully (buffer, HEADER_SIZE + offset);
+            }
+            else
+            {
+                ByteBuffer slice = buffer.slice ();
+                read_fully (slice, HEADER_SIZE + offset);
+                buffer.position (buffer.limit ());
+            }
+            buffer.limit (limit);
+            pos += count;
+        }
+    }
+
+    //=================================================================================================================
+    // WRITER SIDE
+    //=================================================================================================================
+
+    public void append (byte[] data, int off, int len)
+        throws IOException
+    {
+        long size = RECORD_HEADER_SIZE + len;
+
+        if (size > capacity)
+        {
+            throw (new IOException ("Record of " + len + " bytes exceeds ring capacity of " + capacity + " bytes"));
+        }
+
+        if (write_pos + size - oldest_pos > capacity)
+        {
+            // Evict first and tell the readers, only then overwrite
+            while (write_pos + size - oldest_pos > capacity)
+            {
+                record_header.clear ();
+                transfer (record_header, oldest_pos, false);
+                oldest_pos += RECORD_HEADER_SIZE + record_header.getInt (0);
+                oldest_seq++;
+            }
+            write_header ();
+        }
+
+        record_header.clear ();
+        record_header.putInt (len);
+        record_header.putLong (write_seq);
+        record_header.flip ();
+        transfer (record_header, write_pos, true);
+        transfer (ByteBuffer.wrap (data, off, len), write_pos + RECORD_HEADER_SIZE, true);
+
+        // The record becomes visible with the header
+        write_seq++;
+        write_pos += size;
+        write_header ();
+    }
+
+    public void finish ()
+        throws IOException
+    {
+        closed = true;
+        write_header ();
+    }
+
+    @Override // Closeable
+    public void close ()
+        throws IOException
+    {
+        channel.close ();
+    }
+
+    //=================================================================================================================
+    // READER SIDE
+    //=================================================================================================================
+
+    public Tail tail ()
+    {
+        return (new Tail (-1));
+    }
+
+    public Tail tail (long from_seq)
+    {
+        // Resumes after the last record seen, getNextSeq() of a previous Tail
+        return (new Tail (from_seq));
+    }
+
+    // Follows the ring by sequence number, from from_seq or the oldest
+    // record available when from_seq is negative
+    public class Tail
+    {
+        private final long from_seq;
+        private long next_seq = -1;
+        private long next_pos;
+        private long lost;
+
+        Tail (long from_seq)
+        {
+            this.from_seq = from_seq;
+        }
+
+        public long getNextSeq ()
+        {
+            return (next_seq);
+        }
+
+        // Records that were overwritten before we could read them
+        public long getLost ()
+        {
+            return (lost);
+        }
+
+        private void skip_to_oldest ()
+        {
+            // Records before from_seq were never wanted, they aren't lost
+            lost += Math.max (oldest_seq - Math.max (next_seq, from_seq), 0);
+            next_seq = oldest_seq;
+            next_pos = oldest_pos;
+        }
+
+        // Returns the records written since the last poll, possibly none
+        public List<byte[]> poll ()
+            throws IOException
+        {
+            List<byte[]> records = new ArrayList<> ();
+
+            if (!readHeader ())
+            {
+                return (records);
+            }
+
+            if (next_seq == -1)
+            {
+                // First poll, records before from_seq are walked over but not read
+                lost += (from_seq < 0)? 0: Math.max (oldest_seq - from_seq, 0);
+                next_seq = oldest_seq;
+                next_pos = oldest_pos;
+            }
+            else if (next_seq < oldest_seq)
+            {
+                skip_to_oldest ();
+            }
+
+            ByteBuffer tail_header = ByteBuffer.allocate (RECORD_HEADER_SIZE);
+            long pos = next_pos;
+            long seq = next_seq;
+
+            while (seq < write_seq)
+            {
+                tail_header.clear ();
+                transfer (tail_header, pos, false);
+                int length = tail_header.getInt (0);
+
+                if (length < 0 || length > capacity || tail_header.getLong (4) != seq)
+                {
+                    // Overwritten under our feet
+                    break;
+                }
+
+                if (seq >= from_seq)
+                {
+                    ByteBuffer data = ByteBuffer.allocate (length);
+                    transfer (data, pos + RECORD_HEADER_SIZE, false);
+                    records.add (data.array ());
+                }
+                pos += RECORD_HEADER_SIZE + length;
+                seq++;
+            }
+
+            // Whatever the writer evicted meanwhile may be garbage
+            readHeader ();
+            long unsafe = oldest_seq - Math.max (next_seq, from_seq);
+
+            if (unsafe > 0)
+            {
+                lost += unsafe;
+                records.subList (0, (int)Math.min (unsafe, records.size ())).clear ();
+            }
+
+            if (seq < oldest_seq)
+            {
+                // Lapped while reading, go on from the oldest
+                next_seq = oldest_seq;
+                next_pos = oldest_pos;
+            }
+            else
+            {
+                next_seq = seq;
+                next_pos = pos;
+            }
+            return (records);
+        }
+    }
+}
+
+// EOF
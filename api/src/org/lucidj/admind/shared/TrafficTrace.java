@@ -0,0 +1,225 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind.shared;
+
+import java.io.*;
+
+// Binary trace of dispatched requests (all numbers big-endian):
+//
+//   header: "ADMR" <version:1>
+//   record: <timestamp_ms:8> <transaction:1> <name:utf> <option_count:2> { <option:utf> }
+//           <payload_size:8> <stored_length:4> <payload:stored_length>
+//
+// Names and options are modified UTF-8 (DataOutput.writeUTF). The stored
+// length is -1 when the payload was not recorded, the size is kept anyway.
+//
+public class TrafficTrace
+{
+    public final static int VERSION = 1;
+
+    private final static byte[] MAGIC = { 'A', 'D', 'M', 'R' };
+
+    public static class Record
+    {
+        private final long timestamp_ms;
+        private final boolean transaction;
+        private final String name;
+        private final String[] options;
+        private final long payload_size;
+        private final byte[] payload;
+
+        public Record (long timestamp_ms, boolean transaction, String name, String[] options,
+                       long payload_size, byte[] payload)
+        {
+            this.timestamp_ms = timestamp_ms;
+            this.transaction = transaction;
+            this.name = name;
+            this.options = options;
+            this.payload_size = payload_size;
+            this.payload = payload;
+        }
+
+        public long getTimestamp ()
+        {
+            return (timestamp_ms);
+        }
+
+        public boolean isTransaction ()
+        {
+            return (transaction);
+        }
+
+        public String getName ()
+        {
+            return (name);
+        }
+
+        public String[] getOptions ()
+        {
+            return (options);
+        }
+
+        public long getPayloadSize ()
+        {
+            return (payload_size);
+        }
+
+        public byte[] getPayload ()
+        {
+            // Null if not recorded
+            return (payload);
+        }
+    }
+
+    public static class Writer implements Closeable
+    {
+        private final DataOutputStream out;
+        private long written;
+
+        public Writer (OutputStream os)
+            throws IOException
+        {
+            out = new DataOutputStream (new BufferedOutputStream (os));
+            out.write (MAGIC);
+            out.writeByte (VERSION);
+            written = MAGIC.length + 1;
+        }
+
+        public long getWritten ()
+        {
+            return (written);
+        }
+
+        public void write (Record record)
+            throws IOException
+        {
+            int start = out.size ();
+
+            out.writeLong (record.timestamp_ms);
+            out.writeBoolean (record.transaction);
+            out.writeUTF (record.name);
+            out.writeShort (record.options.length);
+
+            for (String option: record.options)
+            {
+                out.writeUTF (option);
+            }
+            out.writeLong (record.payload_size);
+
+            if (record.payload == null)
+            {
+                out.writeInt (-1);
+            }
+            else
+            {
+                out.writeInt (record.payload.length);
+                out.write (record.payload);
+            }
+            written += out.size () - start;
+        }
+
+        public void flush ()
+            throws IOException
+        {
+            // Records are buffered until flushed, the Reader stops before a torn last record
+            out.flush ();
+        }
+
+        @Override // Closeable
+        public void close ()
+            throws IOException
+        {
+            out.close ();
+        }
+    }
+
+    public static class Reader implements Closeable
+    {
+        private final DataInputStream in;
+
+        public Reader (InputStream is)
+            throws IOException
+        {
+            in = new DataInputStream (new BufferedInputStream (is));
+            byte[] magic = new byte [MAGIC.length];
+            in.readFully (magic);
+
+            for (int i = 0; i < MAGIC.length; i++)
+            {
+                if (magic [i] != MAGIC [i])
+                {
+                    throw (new IOException ("Not a traffic trace"));
+                }
+            }
+
+            int version = in.readUnsignedByte ();
+
+            if (version != VERSION)
+            {
+                throw (new IOException ("Unsupported trace version: " + version));
+            }
+        }
+
+        public Record read ()
+            throws IOException
+        {
+            try
+            {
+                return (read_record ());
+            }
+            catch (EOFException end_of_trace)
+            {
+                // Clean end, or a record torn by a crash, the trace ends before it
+                return (null);
+            }
+        }
+
+        private Record read_record ()
+            throws IOException
+        {
+            long timestamp_ms = in.readLong ();
+            boolean transaction = in.readBoolean ();
+            String name = in.readUTF ();
+            String[] options = new String [in.readUnsignedShort ()];
+
+            for (int i = 0; i < options.length; i++)
+            {
+                options [i] = in.readUTF ();
+            }
+
+            long payload_size = in.readLong ();
+            int stored_length = in.readInt ();
+            byte[] payload = null;
+
+            if (stored_length >= 0)
+            {
+                payload = new byte [stored_length];
+                in.readFully (payload);
+            }
+            return (new Record (timestamp_ms, transaction, name, options, payload_size, payload));
+        }
+
+        @Override // Closeable
+        public void close ()
+            throws IOException
+        {
+            in.close ();
+        }
+    }
+}
+
+// EOF
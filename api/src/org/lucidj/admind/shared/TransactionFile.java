@@ -0,0 +1,435 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.admind.shared;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.util.EnumSet;
+import java.util.Set;
+
+// Single-file transaction layout (all numbers big-endian):
+//
+//  0: int  magic ("ADMT")        32: long response_offset
+//  4: int  version               40: long response_length
+//  8: int  state                 48: long error_offset
+// 12: int  status code           56: long error_length
+// 16: long request_offset        64: request body, response body, error body
+// 24: long request_length
+//
+// The client writes the request body first and the whole header last, in a
+// single positional write carrying the state, so until then a reader sees a
+// short file or no magic. Later header rewrites (completion) put every other
+// field in place before flipping the state field on its own.
+//
+// Claiming is a read followed by a write, not an atomic operation: it is only
+// safe with a single claimer, the watcher thread of the server owning the
+// directory.
+//
+public class TransactionFile implements Closeable
+{
+    public final static int HEADER_SIZE = 64;
+
+    private final static int MAGIC = 0x41444D54;
+    private final static int VERSION = 1;
+    private final static int STATE_OFFSET = 8;
+    private final static int BUFFER_SIZE = 8192;
+
+    public final static int STATE_WRITING = 0;
+    public final static int STATE_PENDING = 1;
+    public final static int STATE_RUNNING = 2;
+    public final static int STATE_READY = 3;
+    public final static int STATE_ERROR = 4;
+
+    public final static int STATUS_OK = 0;
+    public final static int STATUS_FAILED = 1;
+    public final static int STATUS_REJECTED = 2;
+
+    private final Path path;
+    private FileChannel channel;
+    private final ByteBuffer header = ByteBuffer.allocate (HEADER_SIZE);
+
+    private int state;
+    private int status;
+    private long request_offset;
+    private long request_length;
+    private long response_offset;
+    private long response_length;
+    private long error_offset;
+    private long error_length;
+
+    private TransactionFile (Path path, FileChannel channel)
+    {
+        this.path = path;
+        this.channel = channel;
+    }
+
+    public static TransactionFile open (File file)
+        throws IOException
+    {
+        return (new TransactionFile (file.toPath (), FileChannel.open (file.toPath (),
+            StandardOpenOption.READ, StandardOpenOption.WRITE)));
+    }
+
+    public static TransactionFile create (File file, FileAttribute<?>... attrs)
+        throws IOException
+    {
+        Set<StandardOpenOption> options = EnumSet.of (StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return (new TransactionFile (file.toPath (), FileChannel.open (file.toPath (), options, attrs)));
+    }
+
+    public void reopen ()
+        throws IOException
+    {
+        // A thread interrupted during I/O closes the channel, the file and
+        // everything we know about it are still valid
+        channel.close ();
+        channel = FileChannel.open (path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    public int getState ()
+    {
+        return (state);
+    }
+
+    public int getStatus ()
+    {
+        return (status);
+    }
+
+    public long getRequestLength ()
+    {
+        return (request_length);
+    }
+
+    public long getResponseLength ()
+    {
+        return (response_length);
+    }
+
+    public long getErrorLength ()
+    {
+        return (error_length);
+    }
+
+    //=================================================================================================================
+    // HEADER
+    //=================================================================================================================
+
+    public boolean readHeader ()
+        throws IOException
+    {
+        header.clear ();
+
+        while (header.hasRemaining ())
+        {
+            if (channel.read (header, header.position ()) == -1)
+            {
+                // Short file, the header is not there yet
+                state = STATE_WRITING;
+                return (false);
+            }
+        }
+
+        if (header.getInt (0) != MAGIC || header.getInt (4) != VERSION)
+        {
+            state = STATE_WRITING;
+            return (false);
+        }
+
+        state = header.getInt (STATE_OFFSET);
+        status = header.getInt (12);
+        request_offset = header.getLong (16);
+        request_length = header.getLong (24);
+        response_offset = header.getLong (32);
+        response_length = header.getLong (40);
+        error_offset = header.getLong (48);
+        error_length = header.getLong (56);
+        return (true);
+    }
+
+    private void write_fully (ByteBuffer buffer, long position)
+        throws IOException
+    {
+        while (buffer.hasRemaining ())
+        {
+            position += channel.write (buffer, position);
+        }
+    }
+
+    private void write_state (int new_state)
+        throws IOException
+    {
+        ByteBuffer state_buffer = ByteBuffer.allocate (4);
+        state_buffer.putInt (0, new_state);
+        write_fully (state_buffer, STATE_OFFSET);
+        state = new_state;
+    }
+
+    private void write_header (int new_state)
+        throws IOException
+    {
+        header.clear ();
+        header.putInt (MAGIC);
+        header.putInt (VERSION);
+        header.putInt (state);
+        header.putInt (status);
+        header.putLong (request_offset);
+        header.putLong (request_length);
+        header.putLong (response_offset);
+        header.putLong (response_length);
+        header.putLong (error_offset);
+        header.putLong (error_length);
+        header.flip ();
+
+        // When the header is fresh the state goes along, otherwise it is
+        // flipped only after every other field is in place
+        if (state == STATE_WRITING)
+        {
+            header.putInt (STATE_OFFSET, new_state);
+            write_fully (header, 0);
+            state = new_state;
+        }
+        else
+        {
+            write_fully (header, 0);
+            write_state (new_state);
+        }
+    }
+
+    //=================================================================================================================
+    // CLIENT SIDE
+    //=================================================================================================================
+
+    public void writeRequest (byte[] data)
+        throws IOException
+    {
+        request_offset = HEADER_SIZE;
+        request_length = data.length;
+        response_offset = request_offset + request_length;
+        write_fully (ByteBuffer.wrap (data), request_offset);
+
+        // The header goes last, only then the request becomes visible
+        state = STATE_WRITING;
+        write_header (STATE_PENDING);
+    }
+
+    private byte[] read_region (long offset, long length)
+        throws IOException
+    {
+        if (length > Integer.MAX_VALUE - 8)
+        {
+            throw (new IOException ("Transaction region too large: " + length));
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate ((int)length);
+
+        while (buffer.hasRemaining ())
+        {
+            if (channel.read (buffer, offset + buffer.position ()) == -1)
+            {
+                throw (new EOFException ("Truncated transaction file"));
+            }
+        }
+        return (buffer.array ());
+    }
+
+    public byte[] readRequest ()
+        throws IOException
+    {
+        return (read_region (request_offset, request_length));
+    }
+
+    public byte[] readResponse ()
+        throws IOException
+    {
+        return (read_region (response_offset, response_length));
+    }
+
+    public byte[] readError ()
+        throws IOException
+    {
+        return (read_region (error_offset, error_length));
+    }
+
+    //=================================================================================================================
+    // SERVER SIDE
+    //=================================================================================================================
+
+    public boolean claim ()
+        throws IOException
+    {
+        // Not atomic, see the single claimer note above
+        if (!readHeader () || state != STATE_PENDING)
+        {
+            return (false);
+        }
+        write_state (STATE_RUNNING);
+        return (true);
+    }
+
+    public InputStream getRequestStream ()
+    {
+        return (new RegionInputStream (request_offset, request_length));
+    }
+
+    public OutputStream getResponseStream ()
+    {
+        return (new ResponseOutputStream ());
+    }
+
+    public void complete (int final_status, byte[] error)
+        throws IOException
+    {
+        status = final_status;
+        error_offset = response_offset + response_length;
+        error_length = error.length;
+        write_fully (ByteBuffer.wrap (error), error_offset);
+        write_header ((final_status == STATUS_OK && error_length == 0)? STATE_READY: STATE_ERROR);
+    }
+
+    @Override // Closeable
+    public void close ()
+        throws IOException
+    {
+        channel.close ();
+    }
+
+    class RegionInputStream extends InputStream
+    {
+        private final ByteBuffer buffer = ByteBuffer.allocate (BUFFER_SIZE);
+        private long position;
+        private long limit;
+
+        RegionInputStream (long offset, long length)
+        {
+            position = offset;
+            limit = offset + length;
+            buffer.limit (0);
+        }
+
+        private boolean fill ()
+            throws IOException
+        {
+            if (buffer.hasRemaining ())
+            {
+                return (true);
+            }
+
+            if (position >= limit)
+            {
+                return (false);
+            }
+
+            buffer.clear ();
+            buffer.limit ((int)Math.min (BUFFER_SIZE, limit - position));
+            int count = channel.read (buffer, position);
+            buffer.flip ();
+
+            if (count <= 0)
+            {
+                return (false);
+            }
+            position += count;
+            return (true);
+        }
+
+        @Override
+        public int read ()
+            throws IOException
+        {
+            return (fill ()? buffer.get () & 0xff: -1);
+        }
+
+        @Override
+        public int read (byte[] b, int off, int len)
+            throws IOException
+        {
+            if (len == 0)
+            {
+                return (0);
+            }
+
+            if (!fill ())
+            {
+                return (-1);
+            }
+
+            int count = Math.min (len, buffer.remaining ());
+            buffer.get (b, off, count);
+            return (count);
+        }
+    }
+
+    class ResponseOutputStream extends OutputStream
+    {
+        private final ByteBuffer buffer = ByteBuffer.allocate (BUFFER_SIZE);
+
+        @Override
+        public void write (int b)
+            throws IOException
+        {
+            if (!buffer.hasRemaining ())
+            {
+                flush ();
+            }
+            buffer.put ((byte)b);
+        }
+
+        @Override
+        public void write (byte[] b, int off, int len)
+            throws IOException
+        {
+            while (len > 0)
+            {
+                if (!buffer.hasRemaining ())
+                {
+                    flush ();
+                }
+
+                int count = Math.min (len, buffer.remaining ());
+                buffer.put (b, off, count);
+                off += count;
+                len -= count;
+            }
+        }
+
+        @Override
+        public void flush ()
+            throws IOException
+        {
+            buffer.flip ();
+            int count = buffer.remaining ();
+            write_fully (buffer, response_offset + response_length);
+            response_length += count;
+            buffer.clear ();
+        }
+
+        @Override
+        public void close ()
+            throws IOException
+        {
+            flush ();
+        }
+    }
+}
+
+// EOF
@@ -23,6 +23,15 @@ public interface TaskProvider
 {
     String NAME_FILTER = TaskProvider.class.getSimpleName() + ".nameFilter";
 
+    // Optional synthetic request (String or byte[]) used to warm up the provider
+    // before it gets real traffic. Also honoured on TaskHandler services.
+    String WARMUP_PAYLOAD = TaskProvider.class.getSimpleName() + ".warmupPayload";
+
+    // Optional deadline in milliseconds (Integer or Long) for every task of
+    // this provider, after which the task is interrupted. Requests may still
+    // set their own. Also honoured on TaskHandler services.
+    String DEADLINE_MS = TaskProvider.class.getSimpleName() + ".deadlineMs";
+
     Task createTask (InputStream in, OutputStream out, OutputStream err, String name, String... options)
         throws Exception;
 }
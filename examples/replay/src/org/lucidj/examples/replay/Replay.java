@@ -0,0 +1,178 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.examples.replay;
+
+import org.lucidj.admind.shared.AdmindUtil;
+import org.lucidj.admind.shared.TrafficTrace;
+
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+// Replays a traffic trace recorded with admind.record.file against a JVM:
+//
+//   java -jar replay.jar <trace file> [<speed>|max] [<server name>]
+//
+// The speed is a factor over the recorded timing (1 = as recorded, 10 = ten
+// times faster), 'max' sends everything as fast as possible. Requests are
+// sent open loop, on schedule whatever the pending ones are doing, and are
+// collected on the same loop while waiting for the next one.
+//
+public class Replay
+{
+    private final static long COLLECT_TIMEOUT_MS = 60000;
+
+    private static long sent;
+    private static long ok;
+    private static long failed;
+    private static long[] latencies_us = new long [1024];
+    private static int latency_count;
+
+    static class Pending
+    {
+        String request;
+        long start;
+
+        Pending (String request, long start)
+        {
+            this.request = request;
+            this.start = start;
+        }
+    }
+
+    private static void collect (List<Pending> pending)
+    {
+        for (Iterator<Pending> it = pending.iterator (); it.hasNext ();)
+        {
+            Pending p = it.next ();
+            int status = AdmindUtil.asyncStatus (p.request);
+
+            if (status == AdmindUtil.ASYNC_READY)
+            {
+                AdmindUtil.asyncResponse (p.request);
+                ok++;
+            }
+            else if (status == AdmindUtil.ASYNC_ERROR || status == AdmindUtil.ASYNC_GONE)
+            {
+                AdmindUtil.asyncError (p.request);
+                failed++;
+            }
+            else
+            {
+                continue;
+            }
+
+            if (latency_count == latencies_us.length)
+            {
+                latencies_us = Arrays.copyOf (latencies_us, latency_count * 2);
+            }
+            latencies_us [latency_count++] = (System.nanoTime () - p.start) / 1000;
+            it.remove ();
+        }
+    }
+
+    private static long percentile (long[] sorted, double rank)
+    {
+        return ((sorted.length == 0)? 0: sorted [Math.max ((int)Math.ceil (sorted.length * rank) - 1, 0)]);
+    }
+
+    public static void main (String[] args)
+        throws Exception
+    {
+        if (args.length < 1)
+        {
+            System.out.println ("Usage: replay <trace file> [<speed>|max] [<server name>]");
+            System.exit (1);
+        }
+
+        boolean max_speed = args.length > 1 && args [1].equals ("max");
+        double speed = (args.length > 1 && !max_speed)? Double.parseDouble (args [1]): 1.0;
+        String admind = AdmindUtil.initAdmindDir ((args.length > 2)? args [2]: null);
+
+        if (admind == null)
+        {
+            System.out.println ("Unable to find admind");
+            System.exit (1);
+        }
+        System.out.println ("Replaying " + args [0] + " on " + admind
+            + " at " + (max_speed? "max": speed + "x") + " speed");
+
+        List<Pending> pending = new ArrayList<> ();
+        long replay_start = System.nanoTime ();
+        long trace_start = -1;
+
+        try (TrafficTrace.Reader reader = new TrafficTrace.Reader (new FileInputStream (args [0])))
+        {
+            for (TrafficTrace.Record record; (record = reader.read ()) != null;)
+            {
+                if (trace_start == -1)
+                {
+                    trace_start = record.getTimestamp ();
+                }
+
+                if (!max_speed)
+                {
+                    // Wait for the record time, collecting whatever finished meanwhile
+                    long due = replay_start + (long)((record.getTimestamp () - trace_start) * 1000000L / speed);
+
+                    while (System.nanoTime () < due)
+                    {
+                        collect (pending);
+                        Thread.sleep (1);
+                    }
+                }
+
+                // Payloads recorded only by size are replayed as zeros
+                byte[] payload = (record.getPayload () != null)?
+                    record.getPayload (): new byte [(int)Math.min (record.getPayloadSize (), Integer.MAX_VALUE - 8)];
+                long start = System.nanoTime ();
+                String request = record.isTransaction ()?
+                    AdmindUtil.asyncInvokeTransaction (record.getName (), payload, record.getOptions ()):
+                    AdmindUtil.asyncInvoke (record.getName (), payload, record.getOptions ());
+                sent++;
+
+                if (request == null)
+                {
+                    failed++;
+                    continue;
+                }
+                pending.add (new Pending (request, start));
+            }
+        }
+
+        long deadline = System.currentTimeMillis () + COLLECT_TIMEOUT_MS;
+
+        while (!pending.isEmpty () && System.currentTimeMillis () < deadline)
+        {
+            collect (pending);
+            Thread.sleep (1);
+        }
+
+        long elapsed_ms = (System.nanoTime () - replay_start) / 1000000;
+        long[] sorted = Arrays.copyOf (latencies_us, latency_count);
+        Arrays.sort (sorted);
+
+        System.out.println ("Sent         : " + sent + " in " + elapsed_ms + "ms");
+        System.out.println ("Ok / Failed  : " + ok + " / " + failed + " (" + pending.size () + " unfinished)");
+        System.out.println ("Latency (us) : p50=" + percentile (sorted, 0.5) + " p99=" + percentile (sorted, 0.99)
+            + " max=" + percentile (sorted, 1.0));
+    }
+}
+
+// EOF
@@ -38,7 +38,7 @@ public class ToUpperProvider implements TaskProvider, BundleActivator
     @Override // TaskProvider
     public Task createTask (InputStream in, OutputStream out, OutputStream err, String locator, String... options)
     {
-        log.info ("New ToUpperTask: locator={} options={}", locator, (Object)options);
+        log.debug ("New ToUpperTask: locator={} options={}", locator, (Object)options);
         return (new ToUpperTask (in, out, err, locator, options));
     }
 